@@ -0,0 +1,63 @@
+package chat;
+
+/**
+ * AuthRequest - What a client sent to identify itself.
+ *
+ * Text clients send one of these lines first:
+ *     /login <username> <password>
+ *     /register <username> <password>
+ *     <username>                         (old clients, no password)
+ * Binary clients send a LOGIN or REGISTER frame (username in the sender name field,
+ * password as payload), or a HELLO frame with just the username.
+ */
+public class AuthRequest {
+
+    public enum Type { LOGIN, REGISTER, NAME_ONLY }
+
+    public final Type type;
+    public final String username;
+    public final String password; // Null for NAME_ONLY
+
+    public AuthRequest(Type type, String username, String password) {
+        this.type = type;
+        this.username = username;
+        this.password = password;
+    }
+
+    /**
+     * Parses the first line of a text client. The password is the rest of the line,
+     * so it may contain spaces.
+     */
+    public static AuthRequest fromLine(String line) {
+        Type type = line.startsWith("/login ") ? Type.LOGIN
+                : line.startsWith("/register ") ? Type.REGISTER
+                : Type.NAME_ONLY;
+        if (type == Type.NAME_ONLY) return new AuthRequest(type, line, null);
+
+        String rest = line.substring(line.indexOf(' ') + 1);
+        int space = rest.indexOf(' ');
+        if (space < 0) return new AuthRequest(type, rest, "");
+        return new AuthRequest(type, rest.substring(0, space), rest.substring(space + 1));
+    }
+
+    /**
+     * Interprets the first frame of a binary client.
+     *
+     * @return The request, or null if the frame is not a handshake frame
+     */
+    public static AuthRequest fromFrame(FrameCodec.Frame frame) {
+        switch (frame.type) {
+            case FrameCodec.HELLO:    return new AuthRequest(Type.NAME_ONLY, frame.payload, null);
+            case FrameCodec.LOGIN:    return new AuthRequest(Type.LOGIN, frame.senderName, frame.payload);
+            case FrameCodec.REGISTER: return new AuthRequest(Type.REGISTER, frame.senderName, frame.payload);
+            default:                  return null;
+        }
+    }
+
+    /**
+     * Whether the client expects an AUTH_OK / AUTH_FAILED answer (old clients do not).
+     */
+    public boolean expectsReply() {
+        return type != Type.NAME_ONLY;
+    }
+}
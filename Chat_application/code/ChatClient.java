@@ -2,12 +2,20 @@ package chat;
 
 import java.io.*;
 import java.net.Socket;
+import java.time.Instant;
 import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
 import java.util.Scanner;
 
 /**
  * ChatClient - Connects to a server, authenticates, and joins the group chat.
  * Supports login/register, sending formatted messages, and color-coded output.
+ * Accounts are checked by the server (see CredentialStore); passwords never touch a local file.
+ *
+ * By default it speaks the line-based text protocol. Started with --binary it uses
+ * length-prefixed frames instead (see FrameCodec).
  */
 public class ChatClient {
 
@@ -17,17 +25,41 @@ public class ChatClient {
     private BufferedWriter bufferedWriter;
     private String username;
 
-    // File where user credentials are stored locally
-    private static final String USER_FILE = "users.txt";
+    // Binary protocol streams (only used with --binary)
+    private boolean binary;
+    private DataInputStream frameInput;
+    private DataOutputStream frameOutput;
+    private boolean magicSent;
+
+    // True once the server accepted a login or registration on this connection
+    private boolean authenticated;
+
+    // Returned by authenticate() when the server hung up instead of answering
+    private static final String CONNECTION_CLOSED = "The server closed the connection.";
 
     /**
      * Constructor for ChatClient
      */
     public ChatClient(Socket socket, String username) {
+        this(socket, username, false);
+    }
+
+    /**
+     * Constructor for ChatClient
+     *
+     * @param binary true to use the binary frame protocol instead of text lines
+     */
+    public ChatClient(Socket socket, String username, boolean binary) {
         try {
             this.socket = socket;
-            this.bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            this.bufferedWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            this.binary = binary;
+            if (binary) {
+                this.frameInput = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                this.frameOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            } else {
+                this.bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                this.bufferedWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            }
             this.username = username;
         } catch (IOException e) {
             closeAll(socket, bufferedReader, bufferedWriter);
@@ -38,11 +70,17 @@ public class ChatClient {
      * Sends messages to the server. Handles graceful exit with "/exit".
      */
     public void sendMessage() {
+        if (binary) {
+            sendFrames();
+            return;
+        }
         try {
-            // Send username first to identify user on server
-            bufferedWriter.write(username);
-            bufferedWriter.newLine();
-            bufferedWriter.flush();
+            if (!authenticated) {
+                // Send username first to identify user on server
+                bufferedWriter.write(username);
+                bufferedWriter.newLine();
+                bufferedWriter.flush();
+            }
 
             Scanner scanner = new Scanner(System.in);
             while (socket.isConnected()) {
@@ -67,11 +105,46 @@ public class ChatClient {
         }
     }
 
+    /**
+     * Binary variant of sendMessage(): the protocol magic and a HELLO frame first
+     * (unless we logged in), then one MESSAGE frame per line. The server adds the
+     * time and the username.
+     */
+    private void sendFrames() {
+        try {
+            if (!authenticated) {
+                writeMagic();
+                FrameCodec.write(frameOutput, FrameCodec.HELLO, 0, 0, "", username);
+                frameOutput.flush();
+            }
+
+            Scanner scanner = new Scanner(System.in);
+            while (socket.isConnected()) {
+                String messageToSend = scanner.nextLine();
+
+                if (messageToSend.equalsIgnoreCase("/exit")) {
+                    closeAll(socket, bufferedReader, bufferedWriter);
+                    System.out.println("[You have left the chat]");
+                    break;
+                }
+
+                FrameCodec.write(frameOutput, FrameCodec.MESSAGE, System.currentTimeMillis(), 0, "", messageToSend);
+                frameOutput.flush();
+            }
+        } catch (IOException e) {
+            closeAll(socket, bufferedReader, bufferedWriter);
+        }
+    }
+
     /**
      * Listens for messages from the server on a separate thread.
      * Colors own messages green for distinction.
      */
     public void listenForMessages() {
+        if (binary) {
+            new Thread(this::listenForFrames).start();
+            return;
+        }
         new Thread(() -> {
             String messageFromGroupChat;
             while (socket.isConnected()) {
@@ -93,6 +166,40 @@ public class ChatClient {
         }).start();
     }
 
+    /**
+     * Binary variant of listenForMessages(): prints each frame as the text protocol would show it.
+     */
+    private void listenForFrames() {
+        DateTimeFormatter timeFormat = DateTimeFormatter.ofPattern("HH:mm");
+        try {
+            FrameCodec.Frame frame;
+            while ((frame = FrameCodec.read(frameInput, FrameCodec.DEFAULT_MAX_FRAME_SIZE)) != null) {
+                switch (frame.type) {
+                    case FrameCodec.MESSAGE:
+                    case FrameCodec.ROOM_MESSAGE:
+                        String tag = frame.room == null ? "" : "[#" + frame.room + "] ";
+                        String time = LocalTime.ofInstant(Instant.ofEpochMilli(frame.timestamp), ZoneId.systemDefault()).format(timeFormat);
+                        System.out.println(tag + "[" + time + "] [" + frame.senderName + "]: " + frame.payload);
+                        break;
+                    case FrameCodec.JOIN:
+                        System.out.println("SERVER: " + frame.senderName + " has entered the chat!");
+                        break;
+                    case FrameCodec.LEAVE:
+                        System.out.println("SERVER: " + frame.senderName + " has left the chat.");
+                        break;
+                    case FrameCodec.NOTICE:
+                        System.out.println("SERVER: " + frame.payload);
+                        break;
+                    default:
+                        // Unknown frame types are ignored for forward compatibility
+                }
+            }
+        } catch (IOException e) {
+            // Connection closed
+        }
+        closeAll(socket, bufferedReader, bufferedWriter);
+    }
+
     /**
      * Safely closes all connections and streams.
      */
@@ -100,6 +207,8 @@ public class ChatClient {
         try {
             if (bufferedReader != null) bufferedReader.close();
             if (bufferedWriter != null) bufferedWriter.close();
+            if (frameInput != null) frameInput.close();
+            if (frameOutput != null) frameOutput.close();
             if (socket != null) socket.close();
         } catch (IOException e) {
             e.printStackTrace();
@@ -109,58 +218,74 @@ public class ChatClient {
     // === AUTHENTICATION METHODS ===
 
     /**
-     * Registers a new user if username does not exist already.
+     * Logs in or registers with the server and waits for its answer.
+     * A failed attempt can be retried on the same connection.
+     *
+     * @param register true to create a new account, false to log in
+     * @return null on success, otherwise the server's reason
      */
-    private static boolean registerUser(String username, String password) throws IOException {
-        File file = new File(USER_FILE);
-        if (!file.exists()) file.createNewFile();
-
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(":");
-                if (parts[0].equals(username)) {
-                    return false;
-                }
-            }
-        }
+    public String authenticate(boolean register, String username, String password) throws IOException {
+        String reason;
+        if (binary) {
+            writeMagic();
+            FrameCodec.write(frameOutput, register ? FrameCodec.REGISTER : FrameCodec.LOGIN, 0, 0, username, password);
+            frameOutput.flush();
 
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file, true))) {
-            writer.write(username + ":" + password);
-            writer.newLine();
+            FrameCodec.Frame reply = FrameCodec.read(frameInput, FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+            if (reply == null) return CONNECTION_CLOSED;
+            reason = reply.type == FrameCodec.AUTH_OK ? null : reply.payload;
+        } else {
+            bufferedWriter.write((register ? "/register " : "/login ") + username + " " + password);
+            bufferedWriter.newLine();
+            bufferedWriter.flush();
+
+            String reply = bufferedReader.readLine();
+            if (reply == null) return CONNECTION_CLOSED;
+            reason = reply.equals("AUTH OK") ? null : reply.substring(reply.indexOf("FAILED") + "FAILED".length()).trim();
         }
 
-        return true;
+        if (reason == null) {
+            this.username = username;
+            this.authenticated = true;
+        }
+        return reason;
     }
 
-    /**
-     * Authenticates a user with the stored username/password combo.
-     */
-    private static boolean loginUser(String username, String password) throws IOException {
-        File file = new File(USER_FILE);
-        if (!file.exists()) return false;
-
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(":");
-                if (parts.length == 2 && parts[0].equals(username) && parts[1].equals(password)) {
-                    return true;
-                }
-            }
+    private void writeMagic() throws IOException {
+        if (!magicSent) {
+            frameOutput.write(FrameCodec.MAGIC);
+            magicSent = true;
         }
-
-        return false;
     }
 
     // === MAIN ENTRY POINT ===
 
     public static void main(String[] args) throws IOException {
+        // --binary selects the frame protocol; the default is the text protocol
+        boolean binary = Arrays.asList(args).contains("--binary");
+
+        // --host=... and --port=... select the server; the default is 127.0.0.1:5000
+        String host = "127.0.0.1";
+        int port = 5000;
+        for (String arg : args) {
+            if (arg.startsWith("--host=")) host = arg.substring("--host=".length());
+            if (arg.startsWith("--port=")) port = Integer.parseInt(arg.substring("--port=".length()));
+        }
+
         Scanner scanner = new Scanner(System.in);
         System.out.println("Do you want to login or register? (Type 'login' or 'register')");
         String option = scanner.nextLine().trim().toLowerCase();
+        if (!option.equals("login") && !option.equals("register")) {
+            System.out.println("Invalid option. Please restart the application.");
+            return;
+        }
+        boolean register = option.equals("register");
 
-        String username, password;
+        // The server checks the credentials, so connect first
+        Socket socket = new Socket(host, port);
+        ChatClient client = new ChatClient(socket, null, binary);
+
+        String username;
         boolean authenticated = false;
 
         while (!authenticated) {
@@ -168,39 +293,30 @@ public class ChatClient {
             username = scanner.nextLine().trim();
 
             System.out.print("Enter password: ");
-            password = scanner.nextLine().trim();
-
-            if (option.equals("register")) {
-                if (registerUser(username, password)) {
-                    System.out.println("Registration successful.");
-                    authenticated = true;
-                } else {
-                    System.out.println("Username already exists. Please try again.");
-                }
-            } else if (option.equals("login")) {
-                if (loginUser(username, password)) {
-                    System.out.println("Login successful.");
-                    authenticated = true;
-                } else {
-                    System.out.println("Invalid credentials. Please try again.");
-                }
-            } else {
-                System.out.println("Invalid option. Please restart the application.");
+            String password = scanner.nextLine().trim();
+
+            String reason = client.authenticate(register, username, password);
+            if (reason == null) {
+                System.out.println(register ? "Registration successful." : "Login successful.");
+                authenticated = true;
+            } else if (reason.equals(CONNECTION_CLOSED)) {
+                System.out.println(reason);
+                client.closeAll(socket, null, null);
                 return;
+            } else {
+                System.out.println(reason + " Please try again.");
+                continue;
             }
 
-            if (authenticated) {
-                // Show welcome banner
-                System.out.println("\n=========================================");
-                System.out.println(" Welcome to Group Chat, " + username + "!");
-                System.out.println(" Type /exit to leave the chat.");
-                System.out.println("=========================================\n");
-
-                Socket socket = new Socket("127.0.0.1", 5000);
-                ChatClient client = new ChatClient(socket, username);
-                client.listenForMessages();
-                client.sendMessage();
-            }
+            // Show welcome banner
+            System.out.println("\n=========================================");
+            System.out.println(" Welcome to Group Chat, " + username + "!");
+            System.out.println(" Type /exit to leave the chat.");
+            System.out.println(" Rooms: /join <room>, /switch <room>, /leave, /rooms");
+            System.out.println("=========================================\n");
+
+            client.listenForMessages();
+            client.sendMessage();
         }
 
         scanner.close();
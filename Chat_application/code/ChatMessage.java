@@ -0,0 +1,201 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ChatMessage - One message on its way through the server, independent of the wire format.
+ *
+ * It is encoded at most once per WireProtocol; all recipients speaking that protocol
+ * share the encoded bytes. Text clients get the familiar lines ("[time] [user]: msg",
+ * "SERVER: ..."), binary clients get frames (see FrameCodec). Chat messages in a room
+ * other than the default one are tagged with the room: "[#room] [time] [user]: msg" for
+ * text clients, a ROOM_MESSAGE frame for binary ones.
+ */
+public class ChatMessage {
+
+    /**
+     * What the message is about.
+     */
+    public enum Kind { CHAT, JOIN, LEAVE, NOTICE, AUTH_OK, AUTH_FAILED }
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm");
+
+    // Session ids are handed out to clients in connection order; 0 is the server.
+    // They are unique on this server only; ClusterNode gives remote senders ids from here too.
+    private static final AtomicInteger nextSessionId = new AtomicInteger(1);
+
+    public final Kind kind;
+    public final int senderId;        // Session id of the sender, 0 for the server
+    public final String senderName;   // Username of the sender, "SERVER" for notices
+    public final long timestamp;      // Epoch milliseconds when the server received the message
+    public final String text;         // The message itself, without time or user prefix
+    public final String room;         // Room of a chat message, null for the default room
+
+    // The exact line a text client sent, if any, so it is forwarded unchanged
+    private final String originalLine;
+
+    // Number in the MessageLog, 0 if the message is not logged. Set before the message is sent.
+    long sequence;
+
+    // Encoded forms, created on first use
+    private volatile ByteBuffer encodedLine;
+    private volatile ByteBuffer encodedFrame;
+
+    private ChatMessage(Kind kind, int senderId, String senderName, long timestamp, String text, String originalLine) {
+        this(kind, senderId, senderName, timestamp, text, originalLine, null);
+    }
+
+    private ChatMessage(Kind kind, int senderId, String senderName, long timestamp, String text, String originalLine, String room) {
+        this.kind = kind;
+        this.senderId = senderId;
+        this.senderName = senderName;
+        this.timestamp = timestamp;
+        this.text = text;
+        this.originalLine = originalLine;
+        this.room = room;
+    }
+
+    /**
+     * Returns a new session id for a connecting client, or a sender on another node.
+     */
+    public static int nextSessionId() {
+        return nextSessionId.getAndIncrement();
+    }
+
+    /**
+     * A chat message sent by a binary client (plain text, no prefix). Line breaks are
+     * replaced by spaces: text clients would otherwise see one frame as several lines,
+     * the later ones without the sender's prefix (e.g. a forged "SERVER: ..." line).
+     */
+    public static ChatMessage chat(int senderId, String senderName, String text) {
+        return new ChatMessage(Kind.CHAT, senderId, senderName, System.currentTimeMillis(), singleLine(text), null);
+    }
+
+    private static String singleLine(String text) {
+        if (text.indexOf('\n') < 0 && text.indexOf('\r') < 0) return text;
+        return text.replace('\r', ' ').replace('\n', ' ');
+    }
+
+    /**
+     * A line sent by a text client. ChatClient formats its lines as "[time] [user]: msg";
+     * that prefix is stripped once here so binary recipients get just the text.
+     * Lines in any other format are passed on as they are.
+     */
+    public static ChatMessage fromTextLine(int senderId, String senderName, String line) {
+        String prefixEnd = "] [" + senderName + "]: ";
+        int close = line.indexOf(prefixEnd);
+        String text = line;
+        if (line.startsWith("[") && close > 0 && line.indexOf(']') == close) {
+            text = line.substring(close + prefixEnd.length());
+        }
+        return new ChatMessage(Kind.CHAT, senderId, senderName, System.currentTimeMillis(), text, line);
+    }
+
+    /**
+     * A message received from another node of the cluster, with its original fields
+     * except the sender's session id, which the caller maps to one of ours.
+     *
+     * @param line The line a text client sent, or null
+     */
+    static ChatMessage relayed(Kind kind, int senderId, String senderName, long timestamp, String text, String line) {
+        return new ChatMessage(kind, senderId, senderName, timestamp, text, line);
+    }
+
+    public static ChatMessage joined(int senderId, String senderName) {
+        return new ChatMessage(Kind.JOIN, senderId, senderName, System.currentTimeMillis(), senderName, null);
+    }
+
+    public static ChatMessage left(int senderId, String senderName) {
+        return new ChatMessage(Kind.LEAVE, senderId, senderName, System.currentTimeMillis(), senderName, null);
+    }
+
+    public static ChatMessage notice(String text) {
+        return new ChatMessage(Kind.NOTICE, 0, "SERVER", System.currentTimeMillis(), text, null);
+    }
+
+    /**
+     * Answer to a successful /login or /register.
+     */
+    public static ChatMessage authOk() {
+        return new ChatMessage(Kind.AUTH_OK, 0, "SERVER", System.currentTimeMillis(), "", null);
+    }
+
+    /**
+     * Answer to a failed /login or /register; the text is the reason.
+     */
+    public static ChatMessage authFailed(String reason) {
+        return new ChatMessage(Kind.AUTH_FAILED, 0, "SERVER", System.currentTimeMillis(), reason, null);
+    }
+
+    /**
+     * Returns this chat message as sent in the given room (not the default one).
+     */
+    public ChatMessage inRoom(String room) {
+        return new ChatMessage(kind, senderId, senderName, timestamp, text, originalLine, room);
+    }
+
+    /**
+     * Returns the exact line a text client sent, or null.
+     */
+    String originalLine() {
+        return originalLine;
+    }
+
+    /**
+     * Returns this message in the text protocol, without the trailing newline.
+     */
+    public String toLine() {
+        switch (kind) {
+            case JOIN:   return "SERVER: " + senderName + " has entered the chat!";
+            case LEAVE:  return "SERVER: " + senderName + " has left the chat.";
+            case NOTICE: return "SERVER: " + text;
+            case AUTH_OK:     return "AUTH OK";
+            case AUTH_FAILED: return "AUTH FAILED " + text;
+            default:
+                String tag = room == null ? "" : "[#" + room + "] ";
+                if (originalLine != null) return tag + originalLine;
+                String time = LocalTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneId.systemDefault()).format(TIME_FORMAT);
+                return tag + "[" + time + "] [" + senderName + "]: " + text;
+        }
+    }
+
+    /**
+     * Returns a recipient's view of this message encoded for the given protocol.
+     * The encoding is computed once and shared by every recipient.
+     */
+    public ByteBuffer encodedFor(WireProtocol protocol) {
+        if (protocol == WireProtocol.BINARY) {
+            ByteBuffer frame = encodedFrame;
+            if (frame == null) {
+                frame = kind == Kind.CHAT && room != null
+                        ? FrameCodec.encodeRoomMessage(timestamp, senderId, senderName, room, text)
+                        : FrameCodec.encode(frameType(), timestamp, senderId, senderName, text);
+                encodedFrame = frame;
+            }
+            return MessageEncoder.shareWith(frame);
+        }
+
+        ByteBuffer line = encodedLine;
+        if (line == null) {
+            line = MessageEncoder.encodeLine(toLine());
+            encodedLine = line;
+        }
+        return MessageEncoder.shareWith(line);
+    }
+
+    private byte frameType() {
+        switch (kind) {
+            case JOIN:   return FrameCodec.JOIN;
+            case LEAVE:  return FrameCodec.LEAVE;
+            case NOTICE: return FrameCodec.NOTICE;
+            case AUTH_OK:     return FrameCodec.AUTH_OK;
+            case AUTH_FAILED: return FrameCodec.AUTH_FAILED;
+            default:     return FrameCodec.MESSAGE;
+        }
+    }
+}
@@ -1,32 +1,115 @@
 package chat;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * ChatServer - Entry point for the group chat server.
  * 
- * This server listens on a specific port and spawns a new thread
- * for each client that connects using the ClientHandler class.
+ * This server listens on a specific port and runs a ClientHandler
+ * for each client that connects, on a platform or a virtual thread.
  */
 public class ChatServer {
 
     // The server socket that listens for client connections
     private ServerSocket serverSocket;
 
+    // Server settings, and the executor running the ClientHandlers and their writer tasks
+    private ServerConfig config;
+    private ExecutorService clientExecutor;
+
+    // The accounts clients log in with, or null if the server has none
+    private CredentialStore credentials;
+
+    // The chat rooms, including the default room's history
+    private RoomRegistry rooms;
+
+    // Connection, traffic and thread metrics
+    private ServerMetrics metrics;
+
     /**
      * Constructor for ChatServer
      * 
      * @param serverSocket The socket to use for listening to connections
      */
     public ChatServer(ServerSocket serverSocket) {
+        this(serverSocket, new ServerConfig());
+    }
+
+    /**
+     * Constructor for ChatServer with explicit settings.
+     *
+     * @param serverSocket The socket to use for listening to connections
+     * @param config       Server settings (executor mode, outbound queue settings)
+     */
+    public ChatServer(ServerSocket serverSocket, ServerConfig config) {
+        this(serverSocket, config, null, new RoomRegistry(config.roomShards, null));
+    }
+
+    /**
+     * Constructor for ChatServer with settings, user accounts and rooms.
+     *
+     * @param serverSocket The socket to use for listening to connections
+     * @param config       Server settings (executor mode, outbound queue settings)
+     * @param credentials  The accounts clients log in with, or null to only accept plain names
+     * @param rooms        The chat rooms (and the default room's history)
+     */
+    public ChatServer(ServerSocket serverSocket, ServerConfig config, CredentialStore credentials, RoomRegistry rooms) {
+        this(serverSocket, config, credentials, rooms, new ServerMetrics(config, rooms, credentials));
+    }
+
+    /**
+     * Constructor for ChatServer with settings, user accounts, rooms and metrics.
+     *
+     * @param serverSocket The socket to use for listening to connections
+     * @param config       Server settings (executor mode, outbound queue settings)
+     * @param credentials  The accounts clients log in with, or null to only accept plain names
+     * @param rooms        The chat rooms (and the default room's history)
+     * @param metrics      The metrics to count in; started by the caller
+     */
+    public ChatServer(ServerSocket serverSocket, ServerConfig config, CredentialStore credentials,
+                      RoomRegistry rooms, ServerMetrics metrics) {
         this.serverSocket = serverSocket;
+        this.config = config;
+        this.credentials = credentials;
+        this.rooms = rooms;
+        this.metrics = metrics;
+        this.clientExecutor = newClientExecutor(config.executor);
+        metrics.setClients(ClientHandler.clientHandlers);
+        metrics.setClientExecutor(clientExecutor);
+    }
+
+    /**
+     * Creates the executor that runs the ClientHandlers.
+     *
+     * Virtual threads only exist from Java 21 on, so they are looked up reflectively;
+     * on older runtimes we print a warning and use platform threads instead.
+     */
+    static ExecutorService newClientExecutor(ServerConfig.ExecutorMode mode) {
+        if (mode == ServerConfig.ExecutorMode.VIRTUAL) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("[SERVER] Virtual threads need Java 21+, using platform threads.");
+            }
+        }
+        // Same as starting a new Thread per client, but finished threads are reused.
+        // Named so that ServerMetrics can tell their CPU usage apart.
+        AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newCachedThreadPool(task -> new Thread(task, "chat-client-" + threadNumber.incrementAndGet()));
     }
 
     /**
      * Starts the chat server and listens for client connections.
-     * Each client is handled in a separate thread.
+     * Each client is handled in a separate (platform or virtual) thread.
      */
     public void startServer() {
         try {
@@ -35,10 +118,9 @@ public class ChatServer {
                 Socket socket = serverSocket.accept();
                 System.out.println("[SERVER] A new client has connected!");
 
-                // Create and start a handler thread for this client
-                ClientHandler clientHandler = new ClientHandler(socket);
-                Thread thread = new Thread(clientHandler);
-                thread.start();
+                // Create a handler for this client and run it on its own thread
+                ClientHandler clientHandler = new ClientHandler(socket, config, clientExecutor, credentials, rooms, metrics);
+                clientExecutor.execute(clientHandler);
             }
         } catch (IOException e) {
             System.out.println("[SERVER] Error while accepting client.");
@@ -56,6 +138,12 @@ public class ChatServer {
                 serverSocket.close();
                 System.out.println("[SERVER] Server socket closed.");
             }
+            clientExecutor.shutdown();
+            metrics.close();
+            if (credentials != null) credentials.close();
+            if (rooms.getCluster() != null) rooms.getCluster().close();
+            rooms.shutdown();
+            if (rooms.getHistory() != null) rooms.getHistory().close();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -63,12 +151,50 @@ public class ChatServer {
 
     /**
      * Main method - Entry point of the server program.
+     * Options are described in ServerConfig (e.g. --mode=nio, --port=5000).
      */
     public static void main(String[] args) throws IOException {
-        // Server listens on port 5000
-        ServerSocket serverSocket = new ServerSocket(5000);
-        ChatServer server = new ChatServer(serverSocket);
-        System.out.println("[SERVER] Chat server started on port 5000.");
+        // Server listens on port 5000 unless --port=... is given
+        ServerConfig config = ServerConfig.parse(args);
+
+        // Accounts live on the server, hashed, in the users file
+        CredentialStore credentials = new CredentialStore(config);
+
+        // Messages are logged so that clients joining later can catch up
+        MessageLog history = null;
+        if (config.historyDir.isEmpty()) {
+            System.out.println("[SERVER] Chat history is off (no --history-dir): late joiners see no earlier messages.");
+        } else {
+            history = new MessageLog(config);
+        }
+
+        // Each room lives on one of a few shard threads, which do its fan-out
+        RoomRegistry rooms = new RoomRegistry(config.roomShards, history);
+
+        // In a cluster, the rooms span every node
+        if (config.clusterPort != 0) {
+            ClusterNode cluster = new ClusterNode(config, rooms);
+            rooms.setCluster(cluster);
+            cluster.start();
+        }
+
+        // Published through JMX and, with --metrics-port, a local HTTP endpoint
+        ServerMetrics metrics = new ServerMetrics(config, rooms, credentials);
+
+        if (config.mode == ServerConfig.Mode.NIO) {
+            // Non-blocking mode: a few event loops serve every client
+            NioChatServer server = new NioChatServer(config, credentials, rooms, metrics);
+            metrics.start();
+            server.startServer();
+            return;
+        }
+
+        // Opened through a channel so accepted sockets support gathering writes
+        ServerSocket serverSocket = ServerSocketChannel.open().socket();
+        serverSocket.bind(new InetSocketAddress(config.port), config.acceptBacklog);
+        ChatServer server = new ChatServer(serverSocket, config, credentials, rooms, metrics);
+        metrics.start();
+        System.out.println("[SERVER] Chat server started on port " + config.port + ".");
         server.startServer();
     }
 }
@@ -2,94 +2,549 @@ package chat;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Handles communication for a single client in the group chat.
  * Broadcasts messages to all other connected clients.
+ *
+ * The client picks its protocol with its first bytes: text lines, or FrameCodec.MAGIC
+ * for binary frames. It then identifies itself with /login, /register or just a name
+ * (see AuthRequest); passwords are checked by the server's CredentialStore.
+ * A client that joins gets the last messages from the MessageLog first. Messages go to
+ * the client's current room (see RoomSession); the room's shard does the fan-out.
+ *
+ * Messages for this client are not written by the sender's thread: they go into a
+ * bounded OutboundQueue that a separate writer task drains, so one slow socket can
+ * never hold up a broadcast. A broadcast is encoded once per protocol and the encoded
+ * bytes are shared by all recipients (see ChatMessage).
  */
-public class ClientHandler implements Runnable {
+public class ClientHandler implements Runnable, RoomMember {
 
-    // Static list of all active client handlers (shared across all instances)
-    public static ArrayList<ClientHandler> clientHandlers = new ArrayList<>();
+    // Registry of all active client handlers by username (shared across all instances)
+    public static final ClientRegistry<ClientHandler> clientHandlers = new ClientRegistry<>();
+
+    // Rooms and metrics of handlers created without a server, see ClientHandler(Socket)
+    private static RoomRegistry defaultRooms;
+    private static ServerMetrics defaultMetrics;
+
+    // Failed logins allowed on one connection before it is closed
+    private static final int MAX_AUTH_ATTEMPTS = 5;
 
     private Socket socket;
-    private BufferedReader bufferedReader;
+    private BufferedInputStream input;        // Raw input, used to detect the protocol
+    private BufferedReader bufferedReader;    // Text protocol reader
+    private DataInputStream frameInput;       // Binary protocol reader
     private BufferedWriter bufferedWriter;
     private String clientUserName;
+    private final int sessionId = ChatMessage.nextSessionId();
+    private WireProtocol protocol = WireProtocol.TEXT;
+
+    // Encoded messages waiting to be written to this client, and where the writer task runs
+    private final OutboundQueue<ByteBuffer> outbound;
+    private final Executor writerExecutor;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private boolean registered; // True once the username was accepted by the registry
+    private volatile boolean closeAfterFlush; // The writer task closes the socket once the queue is empty
+
+    // Accounts (null if the server has none) and whether a login is mandatory
+    private final CredentialStore credentials;
+    private final boolean loginRequired;
+
+    // The chat rooms and this client's place in them
+    private final RoomRegistry rooms;
+    private final RoomSession session;
+
+    // Counts this connection and the bytes written to it
+    private final ServerMetrics metrics;
+
+    // Longest line or frame the client may send; longer ones close the connection
+    private final int maxMessageBytes;
+    private final int maxFrameSize;
+    private boolean skipLineFeed; // The last line ended with '\r'; a '\n' right after belongs to it
+
+    // Last history message replayed to us (set by the default room's shard).
+    // Live messages up to that one are skipped; the client already has them.
+    private long replayedUpTo;
 
     /**
-     * Initializes streams and announces the user to the chat.
+     * Initializes the streams with the default settings, no accounts, no history,
+     * and a new thread for the writer task.
      */
     public ClientHandler(Socket socket) {
+        this(socket, new ServerConfig(), task -> new Thread(task).start(), null, defaultRooms(), defaultMetrics());
+    }
+
+    private static synchronized RoomRegistry defaultRooms() {
+        if (defaultRooms == null) defaultRooms = new RoomRegistry(1, null);
+        return defaultRooms;
+    }
+
+    private static synchronized ServerMetrics defaultMetrics() {
+        if (defaultMetrics == null) defaultMetrics = new ServerMetrics(new ServerConfig(), defaultRooms(), null);
+        return defaultMetrics;
+    }
+
+    /**
+     * Initializes the streams. The username is read in run(), so the
+     * accepting thread never blocks on a slow client.
+     *
+     * @param socket         The client's socket
+     * @param config         Server settings (outbound queue, authentication mode)
+     * @param writerExecutor Runs the task that writes queued messages to the socket
+     * @param credentials    The server's accounts, or null to only accept plain names
+     * @param rooms          The server's chat rooms (and their history)
+     * @param metrics        The server's metrics
+     */
+    public ClientHandler(Socket socket, ServerConfig config, Executor writerExecutor,
+                         CredentialStore credentials, RoomRegistry rooms, ServerMetrics metrics) {
+        this.metrics = metrics;
+        metrics.connectionOpened();
+        this.outbound = new OutboundQueue<>(config.outboundCapacity, config.overflow);
+        this.writerExecutor = writerExecutor;
+        this.credentials = credentials;
+        this.rooms = rooms;
+        this.session = new RoomSession(rooms, this, config);
+        this.maxMessageBytes = config.maxMessageBytes;
+        this.maxFrameSize = FrameCodec.maxFrameSize(config.maxMessageBytes);
+        this.loginRequired = config.auth == ServerConfig.AuthMode.REQUIRED;
         try {
             this.socket = socket;
-            this.bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            this.input = new BufferedInputStream(socket.getInputStream());
             this.bufferedWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            
-            // First message from the client is their username
-            this.clientUserName = bufferedReader.readLine();
-            
-            clientHandlers.add(this);
-            broadCastMessage("SERVER: " + clientUserName + " has entered the chat!");
         } catch (IOException e) {
             closeAll(socket, bufferedReader, bufferedWriter);
         }
     }
 
     /**
-     * Continuously listens for messages from the client and broadcasts them.
+     * Detects the protocol, authenticates the client, announces the user to the chat, then
+     * continuously listens for messages from the client and broadcasts them.
      */
     @Override
     public void run() {
-        String messageFromClient;
+        ChatMessage messageFromClient;
+
+        try {
+            // First the client tells us who it is
+            AuthRequest request = authenticate();
+            if (request == null) {
+                closeAll(socket, bufferedReader, bufferedWriter);
+                return;
+            }
+            this.clientUserName = request.username;
+
+            if (!FrameCodec.isValidName(clientUserName)) {
+                refuse(request, "Usernames can be at most " + FrameCodec.MAX_NAME_LENGTH + " bytes long.");
+                return;
+            }
+            if (rooms.isOnlineElsewhere(clientUserName) || !clientHandlers.register(clientUserName, this)) {
+                // Usernames identify clients, so a second session with the same name is refused
+                refuse(request, "The username '" + clientUserName + "' is already in use.");
+                return;
+            }
+            registered = true;
+
+            // Entering the default room announces us; its history is replayed below
+            long replayUpTo = await(session.joinDefault());
+
+            // Written before the writer task starts, so they arrive before any live message
+            if (request.expectsReply()) writeNow(ChatMessage.authOk());
+            if (replayUpTo > 0) replayHistory(replayUpTo);
+
+            writerExecutor.execute(this::writeQueuedMessages);
+        } catch (IOException e) {
+            closeAll(socket, bufferedReader, bufferedWriter);
+            return;
+        }
 
         while (socket.isConnected()) {
             try {
-                messageFromClient = bufferedReader.readLine();
-                broadCastMessage(messageFromClient);
+                messageFromClient = readMessage();
+                if (messageFromClient == null) {
+                    // The client closed the connection
+                    closeAll(socket, bufferedReader, bufferedWriter);
+                    break;
+                }
+                // After a disconnect notice, read on until the writer task closes the socket
+                if (!closeAfterFlush && admit()) broadCastMessage(messageFromClient);
             } catch (IOException e) {
                 closeAll(socket, bufferedReader, bufferedWriter);
                 break;
             }
         }
+        // A socket closed by another thread (the writer task) ends the loop without an exception
+        closeAll(socket, bufferedReader, bufferedWriter);
     }
 
     /**
-     * Sends a message to all clients except the sender.
+     * Detects the protocol and handles the login. A client that sent /login or /register
+     * may retry a few times; one that only sent a name gets one chance.
+     *
+     * @return The accepted request, or null if the client disconnected or was refused
      */
-    public void broadCastMessage(String messageToSend) {
-        for (ClientHandler clientHandler : clientHandlers) {
+    private AuthRequest authenticate() throws IOException {
+        if (!detectProtocol()) return null;
+
+        for (int attempt = 1; ; attempt++) {
+            AuthRequest request = readAuthRequest();
+            if (request == null) return null;
+
+            CredentialStore.AuthResult result = await(checkCredentials(request));
+            if (result == CredentialStore.AuthResult.OK) return request;
+
+            if (!request.expectsReply() || attempt >= MAX_AUTH_ATTEMPTS) {
+                refuse(request, result.description);
+                return null;
+            }
+            writeNow(ChatMessage.authFailed(result.description));
+        }
+    }
+
+    /**
+     * Reads the client's first bytes: FrameCodec.MAGIC selects binary frames,
+     * anything else is the start of a text line.
+     *
+     * @return false if the client disconnected first
+     */
+    private boolean detectProtocol() throws IOException {
+        input.mark(FrameCodec.MAGIC.length);
+        int first = input.read();
+        if (first < 0) return false;
+
+        if (first != FrameCodec.MAGIC[0]) {
+            input.reset();
+            bufferedReader = new BufferedReader(new InputStreamReader(input));
+            return true;
+        }
+
+        byte[] magic = new byte[FrameCodec.MAGIC.length];
+        magic[0] = (byte) first;
+        int read = input.readNBytes(magic, 1, magic.length - 1);
+        if (read + 1 < magic.length || !FrameCodec.matchesMagic(magic, 0, magic.length)) {
+            throw new IOException("Unknown protocol");
+        }
+        protocol = WireProtocol.BINARY;
+        frameInput = new DataInputStream(input);
+        return true;
+    }
+
+    /**
+     * Reads a /login, /register or plain name line, or the matching frame.
+     *
+     * @return The request, or null if the client disconnected
+     */
+    private AuthRequest readAuthRequest() throws IOException {
+        if (protocol == WireProtocol.TEXT) {
+            String line = readLine();
+            return line == null ? null : AuthRequest.fromLine(line);
+        }
+
+        FrameCodec.Frame frame = FrameCodec.read(frameInput, maxFrameSize);
+        if (frame == null) return null;
+        AuthRequest request = AuthRequest.fromFrame(frame);
+        if (request == null) throw new IOException("Expected a HELLO, LOGIN or REGISTER frame");
+        return request;
+    }
+
+    private CompletableFuture<CredentialStore.AuthResult> checkCredentials(AuthRequest request) {
+        if (credentials != null) return credentials.authenticate(request, loginRequired);
+
+        // Without accounts only plain names can be used
+        return CompletableFuture.completedFuture(request.expectsReply()
+                ? CredentialStore.AuthResult.UNAVAILABLE : CredentialStore.AuthResult.OK);
+    }
+
+    /**
+     * Waits for the hashing pool or the history writer. The wait blocks only this client's own thread.
+     */
+    private static <T> T await(CompletableFuture<T> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while joining", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Joining failed", e.getCause());
+        }
+    }
+
+    /**
+     * Sends the messages this client missed straight from the log files to the socket.
+     */
+    private void replayHistory(long upTo) throws IOException {
+        MessageLog.Replay replay = await(rooms.getHistory().replay(upTo));
+        SocketChannel channel = socket.getChannel();
+        if (channel != null) {
+            metrics.bytesSent(replay.transferTo(protocol, channel));
+            return;
+        }
+
+        // Without a channel there is no transferTo; copy the mapped bytes to the stream instead
+        WriteBatch batch = new WriteBatch();
+        byte[] scratch = new byte[8192];
+        for (ByteBuffer buffer : replay.buffers(protocol)) {
+            batch.add(buffer);
+            metrics.bytesSent(batch.writeTo(socket.getOutputStream(), scratch));
+        }
+    }
+
+    /**
+     * Reads the next chat message in the client's protocol.
+     *
+     * @return The message, or null if the client closed the connection
+     */
+    private ChatMessage readMessage() throws IOException {
+        if (protocol == WireProtocol.TEXT) {
+            String line = readLine();
+            return line == null ? null : ChatMessage.fromTextLine(sessionId, clientUserName, line);
+        }
+
+        FrameCodec.Frame frame;
+        while ((frame = FrameCodec.read(frameInput, maxFrameSize)) != null) {
+            if (frame.type == FrameCodec.MESSAGE) {
+                return ChatMessage.chat(sessionId, clientUserName, frame.payload);
+            }
+            // Other frame types carry nothing for the server; skip them
+        }
+        return null;
+    }
+
+    /**
+     * Reads a line like BufferedReader.readLine, but gives up on lines longer than
+     * --max-message-bytes (in UTF-8) instead of collecting them in memory.
+     *
+     * @return The line without its terminator, or null at the end of the stream
+     * @throws IOException also if the line is too long
+     */
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int bytes = 0;
+        while (true) {
+            int c = bufferedReader.read();
+            if (c < 0) return line.length() > 0 ? line.toString() : null;
+            if (skipLineFeed) {
+                skipLineFeed = false;
+                if (c == '\n') continue;
+            }
+            if (c == '\n') return line.toString();
+            if (c == '\r') {
+                skipLineFeed = true;
+                return line.toString();
+            }
+
+            bytes += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate((char) c) ? 2 : 3;
+            if (bytes > maxMessageBytes) {
+                System.out.println("[SERVER] " + describe() + " sent a line longer than "
+                        + maxMessageBytes + " bytes, disconnecting.");
+                throw new IOException("Line too long");
+            }
+            line.append((char) c);
+        }
+    }
+
+    /**
+     * Applies the rate limits to the next message. With --rate-action=delay this thread
+     * just waits; the client's unread data then slows it down through TCP.
+     *
+     * @return false if the message must not be sent (also when the client is disconnected for flooding)
+     */
+    private boolean admit() throws IOException {
+        while (true) {
+            long result = session.admit(System.nanoTime());
+            if (result == RoomSession.ADMITTED) return true;
+
+            metrics.rateLimited();
+            if (result == RoomSession.DROPPED) return false;
+            if (result == RoomSession.DISCONNECT) {
+                System.out.println("[SERVER] Client '" + clientUserName + "' is sending too fast, disconnecting.");
+                disconnect("You were disconnected for sending messages too fast.");
+                return false;
+            }
             try {
-                if (!clientHandler.clientUserName.equals(this.clientUserName)) {
-                    clientHandler.bufferedWriter.write(messageToSend);
-                    clientHandler.bufferedWriter.newLine();
-                    clientHandler.bufferedWriter.flush();
-                }
-            } catch (IOException e) {
-                closeAll(socket, bufferedReader, bufferedWriter);
+                TimeUnit.NANOSECONDS.sleep(result);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while rate limited", e);
+            }
+        }
+    }
+
+    /**
+     * Queues a last notice for the client; the writer task sends it and everything queued
+     * before it, then closes the socket. Nothing else is queued meanwhile.
+     */
+    @Override
+    public void disconnect(String reason) {
+        if (closeAfterFlush) return;
+        send(ChatMessage.notice(reason));
+        closeAfterFlush = true;
+        outbound.finish();
+    }
+
+    /**
+     * Tells a client that has not joined yet why it is refused, then disconnects it.
+     * Old clients get a SERVER notice, clients that sent /login or /register an AUTH FAILED.
+     */
+    private void refuse(AuthRequest request, String reason) throws IOException {
+        writeNow(request.expectsReply() ? ChatMessage.authFailed(reason) : ChatMessage.notice(reason));
+        closeAll(socket, bufferedReader, bufferedWriter);
+    }
+
+    /**
+     * Writes a message directly, bypassing the queue. Only used before the writer task runs.
+     */
+    private void writeNow(ChatMessage message) throws IOException {
+        WriteBatch batch = new WriteBatch();
+        batch.add(message.encodedFor(protocol));
+        metrics.bytesSent(writeBatch(batch, socket.getChannel(), socket.getOutputStream(), new byte[256]));
+    }
+
+    /**
+     * Sends a line from this client to everyone else in its current room.
+     */
+    public void broadCastMessage(String messageToSend) {
+        broadCastMessage(ChatMessage.fromTextLine(sessionId, clientUserName, messageToSend));
+    }
+
+    /**
+     * Sends a message to everyone else in this client's current room, or handles it if it
+     * is a room command. Only hands the message to the room's shard; each recipient's
+     * writer task does the actual I/O.
+     */
+    public void broadCastMessage(ChatMessage message) {
+        session.send(message);
+    }
+
+    @Override
+    public String getClientUserName() {
+        return clientUserName;
+    }
+
+    @Override
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    @Override
+    public void setReplayedUpTo(long sequence) {
+        this.replayedUpTo = sequence;
+    }
+
+    /**
+     * Queues a message, encoded for this client's protocol, for this client. Never blocks.
+     * If the queue is full and the policy is DISCONNECT, the client is dropped.
+     */
+    public void send(ChatMessage message) {
+        if (message.sequence != 0 && message.sequence <= replayedUpTo) return; // Already replayed
+        if (!outbound.offer(message.encodedFor(protocol)) && !closed.get() && !closeAfterFlush) {
+            System.out.println("[SERVER] Client '" + clientUserName + "' is too slow, disconnecting.");
+            closeSocket();
+        }
+    }
+
+    /**
+     * Writer task: drains the outbound queue in batches, one gathering write
+     * (a single system call) per batch. A write failure only affects this client.
+     */
+    private void writeQueuedMessages() {
+        // Sockets accepted through a ServerSocketChannel have a channel; others fall back to the stream
+        SocketChannel channel = socket.getChannel();
+        WriteBatch batch = new WriteBatch();
+        byte[] scratch = channel == null ? new byte[8192] : null;
+
+        try {
+            OutputStream out = channel == null ? socket.getOutputStream() : null;
+            ByteBuffer message;
+            while ((message = outbound.take()) != null) {
+                // Everything queued meanwhile goes out in the same write
+                batch.add(message);
+                batch.fillFrom(outbound);
+                metrics.bytesSent(writeBatch(batch, channel, out, scratch));
             }
+            if (closeAfterFlush) closeSocket();
+        } catch (IOException e) {
+            // Closing the socket makes run() fail its read and clean up this client
+            closeSocket();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes a whole batch, through the channel if there is one.
+     *
+     * @return The number of bytes written
+     */
+    private static long writeBatch(WriteBatch batch, SocketChannel channel, OutputStream out, byte[] scratch) throws IOException {
+        long written = 0;
+        if (channel != null) {
+            while (!batch.isEmpty()) written += batch.writeTo(channel);
+        } else {
+            written = batch.writeTo(out, scratch);
+            out.flush();
+        }
+        return written;
+    }
+
+    /**
+     * Names the client in log lines: by its username, or by its address before it has one.
+     */
+    private String describe() {
+        if (clientUserName != null) return "Client '" + clientUserName + "'";
+        return "Client at " + socket.getRemoteSocketAddress();
+    }
+
+    /**
+     * Closes the socket only; the reading thread notices and calls closeAll().
+     */
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
     /**
-     * Removes this client from the list and notifies others.
+     * Returns the queue of messages waiting to be written to this client (for metrics).
+     */
+    @Override
+    public OutboundQueue<ByteBuffer> getOutboundQueue() {
+        return outbound;
+    }
+
+    /**
+     * Removes this client from the registry and its rooms, which notify the others.
      */
     public void removeClientHandler() {
-        clientHandlers.remove(this);
-        broadCastMessage("SERVER: " + clientUserName + " has left the chat.");
+        clientHandlers.unregister(clientUserName, this);
+        session.leaveAll();
     }
 
     /**
      * Closes all client resources and prints a server-side disconnection message.
      */
     public void closeAll(Socket socket, BufferedReader bufferedReader, BufferedWriter bufferedWriter) {
-        removeClientHandler(); // Notify others first
+        if (!closed.compareAndSet(false, true)) return;
+        metrics.connectionClosed();
+
+        if (registered) {
+            removeClientHandler(); // Notify others first
+        }
+        outbound.close(); // Stops the writer task
 
         try {
             if (bufferedReader != null) bufferedReader.close();
+            if (frameInput != null) frameInput.close();
             if (bufferedWriter != null) bufferedWriter.close();
             if (socket != null) socket.close();
 
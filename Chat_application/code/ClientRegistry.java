@@ -0,0 +1,151 @@
+package chat;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ClientRegistry - Thread-safe set of connected clients, keyed by username.
+ *
+ * Broadcasting iterates over every client for every message, while joins and leaves
+ * are comparatively rare. Clients are therefore spread over a number of segments, each
+ * holding a copy-on-write array: iteration reads the arrays without any locking, and a
+ * join or leave only copies the one segment it touches (about size / segments entries).
+ * An iteration sees every client that was registered before it started and never throws
+ * ConcurrentModificationException.
+ *
+ * @param <T> The client type (ClientHandler or NioConnection)
+ */
+public class ClientRegistry<T> implements Iterable<T> {
+
+    private static final int DEFAULT_SEGMENTS = 16;
+    private static final Object[] EMPTY = new Object[0];
+
+    // Username lookup; also guarantees a name is registered at most once
+    private final ConcurrentHashMap<String, T> byName = new ConcurrentHashMap<>();
+    private final Segment[] segments;
+
+    /**
+     * One stripe of the registry. Writers copy the array under the lock,
+     * readers just read the volatile reference.
+     */
+    private static class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+        volatile Object[] members = EMPTY;
+    }
+
+    public ClientRegistry() {
+        this(DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * @param segmentCount Number of segments; rounded up to a power of two
+     */
+    public ClientRegistry(int segmentCount) {
+        int size = 1;
+        while (size < segmentCount) size <<= 1;
+        segments = new Segment[size];
+        for (int i = 0; i < size; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Adds a client under its username.
+     *
+     * @return false if the username is already taken (the client is not added)
+     */
+    public boolean register(String userName, T client) {
+        if (byName.putIfAbsent(userName, client) != null) return false;
+
+        Segment segment = segmentFor(userName);
+        segment.lock.lock();
+        try {
+            Object[] members = segment.members;
+            Object[] copy = Arrays.copyOf(members, members.length + 1);
+            copy[members.length] = client;
+            segment.members = copy;
+        } finally {
+            segment.lock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Removes a client, but only if the username still belongs to that client.
+     *
+     * @return true if the client was removed
+     */
+    public boolean unregister(String userName, T client) {
+        if (!byName.remove(userName, client)) return false;
+
+        Segment segment = segmentFor(userName);
+        segment.lock.lock();
+        try {
+            Object[] members = segment.members;
+            for (int i = 0; i < members.length; i++) {
+                if (members[i] == client) {
+                    // Move the last entry into the gap; order inside a segment does not matter
+                    Object[] copy = Arrays.copyOf(members, members.length - 1);
+                    if (i < copy.length) copy[i] = members[members.length - 1];
+                    segment.members = copy;
+                    break;
+                }
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the client registered under a username, or null.
+     */
+    public T get(String userName) {
+        return byName.get(userName);
+    }
+
+    /**
+     * Returns the number of registered clients.
+     */
+    public int size() {
+        return byName.size();
+    }
+
+    private Segment segmentFor(String userName) {
+        int h = userName.hashCode();
+        h ^= (h >>> 16); // Spread the high bits, like HashMap does
+        return segments[h & (segments.length - 1)];
+    }
+
+    /**
+     * Iterates over a snapshot of each segment. Safe while clients join and leave.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int segment = 0;
+            private Object[] members = segments[0].members;
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (index >= members.length) {
+                    if (++segment >= segments.length) return false;
+                    members = segments[segment].members;
+                    index = 0;
+                }
+                return true;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return (T) members[index++];
+            }
+        };
+    }
+}
@@ -0,0 +1,552 @@
+package chat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ClusterNode - Connects this server to the other servers of a cluster.
+ *
+ * Every node keeps one persistent PeerLink to each peer named in --peers and accepts
+ * the peers' links on --cluster-port, so the nodes form a full mesh. Each node sends
+ * only what happened on its own clients (chat messages, joins, leaves, room notices)
+ * and never forwards what it received, so every node gets every event exactly once
+ * and hands it to its own RoomRegistry, which delivers it to the local members.
+ *
+ * Events are numbered per node. A link resends what the peer missed after a reconnect
+ * (the peer says what it has seen), and the receiver drops numbers it already had.
+ * Presence is shared the same way: a link starts with the list of users online on its
+ * node, and later joins and leaves of the default room keep the peers up to date.
+ * When a link drops, the peer's users stay online for --cluster-grace seconds; if it
+ * comes back in time, its new list only announces who came and went meanwhile.
+ * A username that is online on one node cannot log in on another. Two nodes may still
+ * let the same name in at the same moment, before either hears of the other login;
+ * once both logins are known, the session on the node with the lower node id stays
+ * and the other node disconnects its own.
+ *
+ * Session ids are only unique per node, so each remote session gets one of ours
+ * (ChatMessage.nextSessionId) for as long as it is logged in; our clients never see
+ * two senders with the same id.
+ *
+ * Link protocol (big-endian, strings as an int length and UTF-8, -1 for null):
+ *     HELLO    nodeId, epoch                      link -> peer, first frame
+ *     WELCOME  nodeId, epoch, last event seen      peer -> link, answer to HELLO
+ *     PRESENCE event number, user count, users     link -> peer, after WELCOME
+ *     EVENT    number, kind, timestamp, senderId, senderName, text, line, room
+ *     PING     (nothing)                           link -> peer, after PING_INTERVAL_MILLIS without events
+ * The epoch (start time of the node) tells a restarted node from a reconnecting one.
+ * A link that stays silent for LINK_TIMEOUT_MILLIS is dropped like a closed one, so a
+ * peer that crashed or became unreachable without closing its sockets is noticed too.
+ */
+public class ClusterNode {
+
+    // Frame types on a link
+    static final byte HELLO = 1;
+    static final byte WELCOME = 2;
+    static final byte PRESENCE = 3;
+    static final byte EVENT = 4;
+    static final byte PING = 5;
+
+    // Idle links send a PING this often; a link silent for a few pings counts as lost
+    static final int PING_INTERVAL_MILLIS = 2000;
+    static final int LINK_TIMEOUT_MILLIS = 3 * PING_INTERVAL_MILLIS;
+
+    // Longest string accepted from a peer, in bytes
+    private static final int MAX_STRING_LENGTH = 1024 * 1024;
+
+    private final String nodeId;
+    private final long epoch = System.currentTimeMillis();
+    private final int port;
+    private final RoomRegistry rooms;
+    private final int graceSeconds; // How long a peer's users outlive its link
+    private final List<PeerLink> links = new ArrayList<>();
+    private ServerSocket serverSocket;
+    private volatile boolean closed;
+
+    // Our events are numbered under this lock, in the order they are handed to the links
+    private final ReentrantLock publishLock = new ReentrantLock();
+    private long lastSequence;
+    private final Set<String> localUsers = new HashSet<>(); // Guarded by publishLock
+
+    // What we know about each peer that sent us events, by node id (guarded by itself)
+    private final Map<String, Origin> origins = new HashMap<>();
+
+    // Takes the users of peers that stayed away longer than graceSeconds offline
+    private final ScheduledExecutorService expiry = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "chat-cluster-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The state of the events we receive from one peer.
+     */
+    private static class Origin {
+        final String nodeId;
+        long epoch;                   // Start time of the peer, changes when it restarts
+        long lastSeen;                // Last event number received
+        long presenceUpTo;            // Joins and leaves up to here are already in the user list
+        final Set<String> users = new HashSet<>(); // Users online on the peer
+        final Map<Integer, Integer> sessionIds = new HashMap<>(); // The peer's session ids -> ours
+        Socket connection;            // The current link from the peer
+        long connections;             // Links accepted so far, tells an expiry whether the peer came back
+
+        Origin(String nodeId) {
+            this.nodeId = nodeId;
+        }
+    }
+
+    /**
+     * One of our events, as queued on every link.
+     */
+    static class Event {
+        final long sequence;
+        final String room;
+        final ChatMessage message;
+
+        Event(long sequence, String room, ChatMessage message) {
+            this.sequence = sequence;
+            this.room = room;
+            this.message = message;
+        }
+    }
+
+    /**
+     * @param config Node id, cluster port, peers, resend buffer size and grace period
+     * @param rooms  Where events from the peers are delivered
+     */
+    public ClusterNode(ServerConfig config, RoomRegistry rooms) {
+        this.nodeId = config.nodeId;
+        this.port = config.clusterPort;
+        this.rooms = rooms;
+        this.graceSeconds = config.clusterGraceSeconds;
+        for (String peer : config.peers) {
+            int colon = peer.lastIndexOf(':');
+            links.add(new PeerLink(this, peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1)), config.clusterBuffer));
+        }
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Starts accepting links from the peers and connecting to them.
+     */
+    public void start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(port));
+
+        Thread acceptor = new Thread(this::acceptLinks, "chat-cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (PeerLink link : links) {
+            link.start();
+        }
+        System.out.println("[SERVER] Cluster node '" + nodeId + "' listening for peers on port " + port + ", " + links.size() + " peers.");
+    }
+
+    // === OUR EVENTS ===
+
+    /**
+     * Sends an event of one of our clients to every peer. Called by the room's shard
+     * after the local fan-out; never waits for the network.
+     */
+    public void publish(String room, ChatMessage message) {
+        publishLock.lock();
+        try {
+            if (isPresence(room, message)) {
+                if (message.kind == ChatMessage.Kind.JOIN) {
+                    localUsers.add(message.senderName);
+                } else {
+                    localUsers.remove(message.senderName);
+                }
+            }
+
+            Event event = new Event(++lastSequence, room, message);
+            for (PeerLink link : links) {
+                link.enqueue(event);
+            }
+        } finally {
+            publishLock.unlock();
+        }
+
+        // Checked after the user is in localUsers, so a peer's login arriving meanwhile is caught in readEvent
+        if (isPresence(room, message) && message.kind == ChatMessage.Kind.JOIN) {
+            String winner = preferredNodeOf(message.senderName);
+            if (winner != null) loggedInTwice(message.senderName, winner);
+        }
+    }
+
+    /**
+     * Writes the users online here, and the number of the last event they include.
+     * Called by a link right after its handshake.
+     */
+    void writePresence(DataOutputStream out) throws IOException {
+        List<String> users;
+        long upTo;
+        publishLock.lock();
+        try {
+            users = new ArrayList<>(localUsers);
+            upTo = lastSequence;
+        } finally {
+            publishLock.unlock();
+        }
+
+        out.writeByte(PRESENCE);
+        out.writeLong(upTo);
+        out.writeInt(users.size());
+        for (String user : users) {
+            writeString(out, user);
+        }
+    }
+
+    /**
+     * Joins and leaves of the default room are logins and logouts.
+     */
+    private static boolean isPresence(String room, ChatMessage message) {
+        return room.equals(RoomRegistry.DEFAULT_ROOM)
+                && (message.kind == ChatMessage.Kind.JOIN || message.kind == ChatMessage.Kind.LEAVE);
+    }
+
+    /**
+     * Checks whether a user is online on another node.
+     */
+    public boolean isOnlineElsewhere(String userName) {
+        synchronized (origins) {
+            for (Origin origin : origins.values()) {
+                if (origin.users.contains(userName)) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the lowest node id below ours on which the user is online, or null.
+     */
+    private String preferredNodeOf(String userName) {
+        String winner = null;
+        synchronized (origins) {
+            for (Origin origin : origins.values()) {
+                if (origin.users.contains(userName) && origin.nodeId.compareTo(nodeId) < 0
+                        && (winner == null || origin.nodeId.compareTo(winner) < 0)) {
+                    winner = origin.nodeId;
+                }
+            }
+        }
+        return winner;
+    }
+
+    /**
+     * Called when a peer announces a user. If the user is also logged in here and the
+     * peer's node id is lower, our session gives way. Called with the origins lock held.
+     */
+    private void checkLogin(Origin origin, String userName) {
+        if (origin.nodeId.compareTo(nodeId) >= 0) return; // Our session wins; the peer disconnects its own
+        boolean local;
+        publishLock.lock();
+        try {
+            local = localUsers.contains(userName);
+        } finally {
+            publishLock.unlock();
+        }
+        if (local) loggedInTwice(userName, origin.nodeId);
+    }
+
+    private void loggedInTwice(String userName, String winner) {
+        System.out.println("[SERVER] User '" + userName + "' is also logged in on node '" + winner + "', disconnecting them here.");
+        rooms.disconnect(userName, "You logged in on another server; this session was closed.");
+    }
+
+    // === PEERS' EVENTS ===
+
+    private void acceptLinks() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(LINK_TIMEOUT_MILLIS); // Reads fail if the peer goes silent
+                Thread reader = new Thread(() -> readLink(socket), "chat-cluster-in-" + socket.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (closed) return;
+                System.out.println("[SERVER] Error while accepting a peer: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Handles one link from a peer: the handshake, then its events until it closes.
+     */
+    private void readLink(Socket socket) {
+        Origin origin = null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            if (in.readByte() != HELLO) throw new IOException("Expected HELLO from peer");
+            String peerId = readString(in);
+            long peerEpoch = in.readLong();
+            origin = connect(peerId, peerEpoch, socket);
+
+            out.writeByte(WELCOME);
+            writeString(out, nodeId);
+            out.writeLong(epoch);
+            out.writeLong(origin.lastSeen);
+            out.flush();
+
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (type == PRESENCE) {
+                    readPresence(in, origin);
+                } else if (type == EVENT) {
+                    readEvent(in, origin);
+                } else if (type != PING) {
+                    throw new IOException("Unknown frame type from peer: " + type);
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            if (!closed && origin != null) {
+                System.out.println("[SERVER] Peer '" + origin.nodeId + "' sent nothing for "
+                        + LINK_TIMEOUT_MILLIS + " ms, dropping its links.");
+                // Our link to it may be stuck writing into a full socket buffer
+                for (PeerLink link : links) {
+                    link.reset(origin.nodeId);
+                }
+            }
+        } catch (IOException e) {
+            if (!closed && !socket.isClosed()) {
+                System.out.println("[SERVER] Link from a peer failed: " + e.getMessage());
+            }
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (origin != null) disconnect(origin, socket);
+        }
+    }
+
+    /**
+     * Makes a new link the current one of its peer. A restarted peer starts over,
+     * and its old users are gone.
+     */
+    private Origin connect(String peerId, long peerEpoch, Socket socket) throws IOException {
+        synchronized (origins) {
+            Origin origin = origins.computeIfAbsent(peerId, Origin::new);
+            if (origin.connection != null) origin.connection.close(); // A stale link from before a reconnect
+            origin.connection = socket;
+            origin.connections++;
+            if (origin.epoch != peerEpoch) {
+                origin.epoch = peerEpoch;
+                origin.lastSeen = 0;
+                origin.presenceUpTo = 0;
+                origin.sessionIds.clear();
+                setUsers(origin, new HashSet<>());
+            }
+            System.out.println("[SERVER] Peer '" + peerId + "' connected.");
+            return origin;
+        }
+    }
+
+    /**
+     * Notes that a peer's link went away. Its users stay online for the grace period,
+     * so a short network problem does not log everyone out and back in.
+     */
+    private void disconnect(Origin origin, Socket socket) {
+        synchronized (origins) {
+            if (origin.connection != socket) return; // Already replaced by a newer link
+            origin.connection = null;
+            long connections = origin.connections;
+            System.out.println("[SERVER] Peer '" + origin.nodeId + "' disconnected.");
+            if (!closed) expiry.schedule(() -> expire(origin, connections), graceSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Forgets the users of a peer that did not come back within the grace period;
+     * its next link brings them back.
+     */
+    private void expire(Origin origin, long connections) {
+        synchronized (origins) {
+            if (origin.connections != connections) return; // Reconnected meanwhile
+            origin.sessionIds.clear();
+            setUsers(origin, new HashSet<>());
+            System.out.println("[SERVER] Peer '" + origin.nodeId + "' did not come back, its users are offline.");
+        }
+    }
+
+    private void readPresence(DataInputStream in, Origin origin) throws IOException {
+        long upTo = in.readLong();
+        int count = in.readInt();
+        if (count < 0) throw new IOException("Invalid user count from peer: " + count);
+        Set<String> users = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            users.add(readString(in));
+        }
+        synchronized (origins) {
+            origin.presenceUpTo = upTo;
+            setUsers(origin, users);
+        }
+    }
+
+    /**
+     * Replaces a peer's user list and tells the local clients who came and went.
+     * Called with the origins lock held.
+     */
+    private void setUsers(Origin origin, Set<String> users) {
+        for (String user : origin.users) {
+            if (!users.contains(user)) rooms.deliver(RoomRegistry.DEFAULT_ROOM, ChatMessage.left(0, user));
+        }
+        for (String user : users) {
+            if (!origin.users.contains(user)) {
+                rooms.deliver(RoomRegistry.DEFAULT_ROOM, ChatMessage.joined(0, user));
+                checkLogin(origin, user);
+            }
+        }
+        origin.users.clear();
+        origin.users.addAll(users);
+    }
+
+    private void readEvent(DataInputStream in, Origin origin) throws IOException {
+        long sequence = in.readLong();
+        int kind = in.readByte();
+        long timestamp = in.readLong();
+        int senderId = in.readInt();
+        String senderName = readString(in);
+        String text = readString(in);
+        String line = readString(in);
+        String room = readString(in);
+        if (kind < 0 || kind >= ChatMessage.Kind.values().length || senderName == null || text == null
+                || room == null || !RoomRegistry.isValidName(room)) {
+            throw new IOException("Malformed event from peer");
+        }
+
+        synchronized (origins) {
+            if (sequence <= origin.lastSeen) return; // Resent after a reconnect, we have it
+            origin.lastSeen = sequence;
+
+            ChatMessage message = ChatMessage.relayed(ChatMessage.Kind.values()[kind], localSessionId(origin, senderId),
+                    senderName, timestamp, text, line);
+            if (message.kind == ChatMessage.Kind.CHAT && !room.equals(RoomRegistry.DEFAULT_ROOM)) {
+                message = message.inRoom(room);
+            }
+            if (isPresence(room, message) && message.kind == ChatMessage.Kind.LEAVE) {
+                origin.sessionIds.remove(senderId); // The session is over
+            }
+
+            if (isPresence(room, message)) {
+                if (sequence <= origin.presenceUpTo) return; // Already part of the user list
+                if (message.kind == ChatMessage.Kind.JOIN) {
+                    origin.users.add(senderName);
+                    checkLogin(origin, senderName);
+                } else {
+                    origin.users.remove(senderName);
+                }
+            }
+            // Delivered under the lock, so the rooms get a peer's events in order
+            rooms.deliver(room, message);
+        }
+    }
+
+    /**
+     * Returns our session id for a session of a peer (0, the server, stays 0).
+     * Called with the origins lock held.
+     */
+    private static int localSessionId(Origin origin, int senderId) {
+        if (senderId == 0) return 0;
+        return origin.sessionIds.computeIfAbsent(senderId, id -> ChatMessage.nextSessionId());
+    }
+
+    /**
+     * Stops accepting links and closes all links.
+     */
+    public void close() {
+        closed = true;
+        expiry.shutdownNow();
+        try {
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (PeerLink link : links) {
+            link.close();
+        }
+        synchronized (origins) {
+            for (Origin origin : origins.values()) {
+                try {
+                    if (origin.connection != null) origin.connection.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // === ENCODING ===
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) return null;
+        if (length < 0 || length > MAX_STRING_LENGTH) throw new IOException("Invalid string length from peer: " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes one of our events to a link.
+     */
+    static void writeEvent(DataOutputStream out, Event event) throws IOException {
+        ChatMessage message = event.message;
+        out.writeByte(EVENT);
+        out.writeLong(event.sequence);
+        out.writeByte(message.kind.ordinal());
+        out.writeLong(message.timestamp);
+        out.writeInt(message.senderId);
+        writeString(out, message.senderName);
+        writeString(out, message.text);
+        writeString(out, message.originalLine());
+        writeString(out, event.room);
+    }
+}
@@ -0,0 +1,358 @@
+package chat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * CredentialStore - Server-side user accounts.
+ *
+ * All accounts are loaded into a hash map at startup, so a login is a map lookup plus
+ * one password hash instead of a scan of users.txt. The file is an append-only log:
+ * registrations append one record, and a periodic compaction rewrites it when it holds
+ * records that are no longer needed.
+ *
+ * Records have the form username:iterations:salt:hash (salt and hash in Base64), where
+ * hash is PBKDF2-HMAC-SHA256 of the password. Lines in the old username:password form
+ * are hashed on load and removed from the file by the first compaction.
+ *
+ * Hashing is deliberately slow, so it runs on a small bounded pool: when the pool's
+ * queue is full, new attempts are answered with BUSY instead of piling up, and the
+ * threads serving the chat are never used for hashing.
+ */
+public class CredentialStore {
+
+    /**
+     * Outcome of a login or registration.
+     */
+    public enum AuthResult {
+        OK("OK"),
+        INVALID_CREDENTIALS("Invalid credentials."),
+        USERNAME_TAKEN("Username already exists."),
+        INVALID_USERNAME("Usernames must not be empty or contain spaces or ':'."),
+        LOGIN_REQUIRED("Please log in or register first."),
+        REGISTERED_NAME("This username belongs to a registered user, please log in."),
+        BUSY("The server is busy, please try again."),
+        UNAVAILABLE("Accounts are not available on this server.");
+
+        public final String description;
+
+        AuthResult(String description) {
+            this.description = description;
+        }
+    }
+
+    /**
+     * One stored account.
+     */
+    private static class Credential {
+        final int iterations;
+        final byte[] salt;
+        final byte[] hash;
+
+        Credential(int iterations, byte[] salt, byte[] hash) {
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+    }
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final long COMPACTION_INTERVAL_MINUTES = 10;
+
+    private final Path file;
+    private final int iterations;
+    private final ConcurrentHashMap<String, Credential> accounts = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+
+    // Hashing pool with a bounded queue, and the compaction timer
+    private final ThreadPoolExecutor hashPool;
+    private final ScheduledExecutorService compactor;
+
+    // Appends and compaction both rewrite the file; this lock keeps them apart
+    private final ReentrantLock fileLock = new ReentrantLock();
+    private FileChannel log;
+    private int logRecords;          // Records in the file, including ones compaction would drop
+    private boolean plaintextRecords; // The file still holds old username:password lines
+
+    // Hashed for unknown usernames, so they take as long as wrong passwords
+    private final Credential dummy;
+
+    /**
+     * Loads the accounts from the file (creating it if needed) and starts the pools.
+     */
+    public CredentialStore(ServerConfig config) throws IOException {
+        this.file = Path.of(config.usersFile);
+        this.iterations = config.hashIterations;
+        this.dummy = new Credential(iterations, new byte[SALT_BYTES], new byte[HASH_BITS / 8]);
+
+        this.hashPool = new ThreadPoolExecutor(config.authThreads, config.authThreads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(config.authQueue), daemonThreads("chat-auth"));
+        this.compactor = Executors.newSingleThreadScheduledExecutor(daemonThreads("chat-auth-compactor"));
+
+        load();
+        if (plaintextRecords) {
+            compact(); // Get plaintext passwords out of the file right away
+        }
+        compactor.scheduleWithFixedDelay(this::compactIfNeeded,
+                COMPACTION_INTERVAL_MINUTES, COMPACTION_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Answers a handshake: logs in, registers, or admits a client that only sent a name.
+     *
+     * @param request      The client's handshake
+     * @param loginRequired true if clients that only send a name are refused
+     */
+    public CompletableFuture<AuthResult> authenticate(AuthRequest request, boolean loginRequired) {
+        switch (request.type) {
+            case LOGIN:    return login(request.username, request.password);
+            case REGISTER: return register(request.username, request.password);
+            default:
+                // Old clients only send a name; they may not use a registered account's name
+                AuthResult result = loginRequired ? AuthResult.LOGIN_REQUIRED
+                        : exists(request.username) ? AuthResult.REGISTERED_NAME
+                        : AuthResult.OK;
+                return CompletableFuture.completedFuture(result);
+        }
+    }
+
+    /**
+     * Checks a username and password on the hashing pool.
+     */
+    public CompletableFuture<AuthResult> login(String username, String password) {
+        return submit(() -> {
+            Credential credential = accounts.get(username);
+            boolean matches = verify(password, credential != null ? credential : dummy);
+            return credential != null && matches ? AuthResult.OK : AuthResult.INVALID_CREDENTIALS;
+        });
+    }
+
+    /**
+     * Creates an account on the hashing pool, unless the username is taken.
+     */
+    public CompletableFuture<AuthResult> register(String username, String password) {
+        if (!isValidUserName(username)) {
+            return CompletableFuture.completedFuture(AuthResult.INVALID_USERNAME);
+        }
+        if (accounts.containsKey(username)) {
+            return CompletableFuture.completedFuture(AuthResult.USERNAME_TAKEN);
+        }
+        return submit(() -> {
+            Credential credential = newCredential(password);
+            if (accounts.putIfAbsent(username, credential) != null) {
+                return AuthResult.USERNAME_TAKEN;
+            }
+            try {
+                append(username, credential);
+            } catch (IOException e) {
+                accounts.remove(username, credential); // Not persisted, so not registered
+                throw e;
+            }
+            return AuthResult.OK;
+        });
+    }
+
+    /**
+     * Returns true if an account with this username exists.
+     */
+    public boolean exists(String username) {
+        return accounts.containsKey(username);
+    }
+
+    /**
+     * Usernames end up in a ':'-separated file and in space-separated commands.
+     */
+    public static boolean isValidUserName(String username) {
+        if (username.isEmpty() || !FrameCodec.isValidName(username)) return false;
+        for (int i = 0; i < username.length(); i++) {
+            char c = username.charAt(i);
+            if (c == ':' || Character.isWhitespace(c)) return false;
+        }
+        return true;
+    }
+
+    private interface HashTask {
+        AuthResult run() throws Exception;
+    }
+
+    private CompletableFuture<AuthResult> submit(HashTask task) {
+        CompletableFuture<AuthResult> result = new CompletableFuture<>();
+        try {
+            hashPool.execute(() -> {
+                try {
+                    result.complete(task.run());
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.complete(AuthResult.BUSY);
+        }
+        return result;
+    }
+
+    // === HASHING ===
+
+    private Credential newCredential(String password) throws GeneralSecurityException {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        return new Credential(iterations, salt, hash(password, salt, iterations));
+    }
+
+    private static boolean verify(String password, Credential credential) throws GeneralSecurityException {
+        byte[] actual = hash(password, credential.salt, credential.iterations);
+        return MessageDigest.isEqual(actual, credential.hash); // Constant-time comparison
+    }
+
+    private static byte[] hash(String password, byte[] salt, int iterations) throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    // === FILE LOG ===
+
+    /**
+     * Reads every record into the map. Later records for the same name win.
+     */
+    private void load() throws IOException {
+        if (!Files.exists(file)) Files.createFile(file);
+
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) continue;
+                logRecords++;
+
+                String[] parts = line.split(":");
+                try {
+                    if (parts.length == 4) {
+                        Base64.Decoder base64 = Base64.getDecoder();
+                        accounts.put(parts[0], new Credential(Integer.parseInt(parts[1]),
+                                base64.decode(parts[2]), base64.decode(parts[3])));
+                    } else if (parts.length == 2) {
+                        // Old plaintext record: hash it now, compaction rewrites the file
+                        accounts.put(parts[0], newCredential(parts[1]));
+                        plaintextRecords = true;
+                    } else {
+                        System.out.println("[SERVER] Skipping malformed line in " + file);
+                    }
+                } catch (IllegalArgumentException | GeneralSecurityException e) {
+                    System.out.println("[SERVER] Skipping malformed line in " + file);
+                }
+            }
+        }
+        log = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void append(String username, Credential credential) throws IOException {
+        fileLock.lock();
+        try {
+            log.write(ByteBuffer.wrap(format(username, credential).getBytes(StandardCharsets.UTF_8)));
+            log.force(false);
+            logRecords++;
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    private void compactIfNeeded() {
+        fileLock.lock();
+        try {
+            if (plaintextRecords || logRecords > accounts.size()) {
+                compact();
+            }
+        } catch (IOException e) {
+            System.out.println("[SERVER] Compaction of " + file + " failed.");
+            e.printStackTrace();
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /**
+     * Rewrites the file with exactly one record per account and swaps it in atomically.
+     */
+    private void compact() throws IOException {
+        fileLock.lock();
+        try {
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            StringBuilder sb = new StringBuilder();
+            accounts.forEach((username, credential) -> sb.append(format(username, credential)));
+            Files.write(temp, sb.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            if (log != null) log.close();
+            log = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            logRecords = accounts.size();
+            plaintextRecords = false;
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    private static String format(String username, Credential credential) {
+        Base64.Encoder base64 = Base64.getEncoder();
+        return username + ":" + credential.iterations + ":" + base64.encodeToString(credential.salt)
+                + ":" + base64.encodeToString(credential.hash) + "\n";
+    }
+
+    /**
+     * Stops the pools and closes the file.
+     */
+    public void close() {
+        hashPool.shutdown();
+        compactor.shutdown();
+        fileLock.lock();
+        try {
+            if (log != null) log.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of logins being hashed or waiting for a hashing thread (for metrics).
+     */
+    public int getPendingLogins() {
+        return hashPool.getActiveCount() + hashPool.getQueue().size();
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return task -> {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,222 @@
+package chat;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * FrameCodec - Length-prefixed binary frames, the alternative to the line protocol.
+ *
+ * A client selects the binary protocol by sending MAGIC as its very first bytes
+ * (a text client's first byte is the start of its username, which is never 0).
+ * After that both directions exchange frames of the form (big-endian):
+ *
+ *     int    length       number of bytes that follow this field
+ *     byte   type         HELLO, MESSAGE, JOIN, ... (see the constants below)
+ *     long   timestamp    epoch milliseconds, set by the server
+ *     int    senderId     session id of the sender, 0 for the server
+ *     byte   nameLength   length of the sender name in bytes
+ *     byte[] senderName   UTF-8
+ *     byte[] payload      UTF-8, the rest of the frame
+ *
+ * ROOM_MESSAGE frames, chat messages in a room other than the default one, start their
+ * payload with the room instead (byte roomLength, byte[] room in UTF-8) before the text.
+ *
+ * Receivers never have to pick "[time] [user]: msg" strings apart.
+ */
+public final class FrameCodec {
+
+    // Sent once by binary clients instead of a username line
+    public static final byte[] MAGIC = { 0, 'C', 'H', 'A', 'T', 1 };
+
+    // Frame types
+    public static final byte HELLO = 1;    // client -> server, payload is the username
+    public static final byte MESSAGE = 2;  // chat message, payload is the text
+    public static final byte JOIN = 3;     // server -> client, a user entered the chat
+    public static final byte LEAVE = 4;    // server -> client, a user left the chat
+    public static final byte NOTICE = 5;   // server -> client, payload is a server notice
+    public static final byte LOGIN = 6;    // client -> server, sender name is the username, payload the password
+    public static final byte REGISTER = 7; // client -> server, same fields as LOGIN
+    public static final byte AUTH_OK = 8;  // server -> client, login or registration accepted
+    public static final byte AUTH_FAILED = 9; // server -> client, payload is the reason
+    public static final byte ROOM_MESSAGE = 10; // server -> client, chat message in another room than the default one
+
+    // Bytes after the length field that every frame has: type, timestamp, senderId, nameLength
+    public static final int HEADER_SIZE = 1 + 8 + 4 + 1;
+
+    // Frames larger than this are treated as a protocol error
+    public static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024;
+
+    // Longest sender name (in UTF-8 bytes) a frame can carry
+    public static final int MAX_NAME_LENGTH = 255;
+
+    /**
+     * Returns the size of the largest frame whose payload is at most maxPayload bytes.
+     */
+    public static int maxFrameSize(int maxPayload) {
+        return HEADER_SIZE + MAX_NAME_LENGTH + maxPayload;
+    }
+
+    private FrameCodec() {
+    }
+
+    /**
+     * A decoded frame.
+     */
+    public static class Frame {
+        public byte type;
+        public long timestamp;
+        public int senderId;
+        public String senderName;
+        public String room; // Only set for ROOM_MESSAGE
+        public String payload;
+
+        public Frame(byte type, long timestamp, int senderId, String senderName, String room, String payload) {
+            this.type = type;
+            this.timestamp = timestamp;
+            this.senderId = senderId;
+            this.senderName = senderName;
+            this.room = room;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Encodes a frame, including its length prefix, into a read-only direct buffer
+     * (a slice of MessageEncoder's slab).
+     */
+    public static ByteBuffer encode(byte type, long timestamp, int senderId, String senderName, String payload) {
+        byte[] name = nameBytes(senderName);
+        byte[] body = payload.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer buffer = MessageEncoder.allocate(4 + HEADER_SIZE + name.length + body.length);
+        buffer.putInt(HEADER_SIZE + name.length + body.length)
+              .put(type)
+              .putLong(timestamp)
+              .putInt(senderId)
+              .put((byte) name.length)
+              .put(name)
+              .put(body)
+              .flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Encodes a ROOM_MESSAGE frame like encode(), with the room in front of the text.
+     */
+    public static ByteBuffer encodeRoomMessage(long timestamp, int senderId, String senderName, String room, String text) {
+        byte[] name = nameBytes(senderName);
+        byte[] roomName = room.getBytes(StandardCharsets.UTF_8);
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        if (roomName.length > 255) throw new IllegalArgumentException("Room name longer than 255 bytes");
+
+        int length = HEADER_SIZE + name.length + 1 + roomName.length + body.length;
+        ByteBuffer buffer = MessageEncoder.allocate(4 + length);
+        buffer.putInt(length)
+              .put(ROOM_MESSAGE)
+              .putLong(timestamp)
+              .putInt(senderId)
+              .put((byte) name.length)
+              .put(name)
+              .put((byte) roomName.length)
+              .put(roomName)
+              .put(body)
+              .flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Decodes the part of a frame after its length field.
+     *
+     * @throws IOException if the frame is malformed
+     */
+    public static Frame decode(byte[] data, int offset, int length) throws IOException {
+        if (length < HEADER_SIZE) throw new IOException("Frame too short: " + length + " bytes");
+
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+        byte type = buffer.get();
+        long timestamp = buffer.getLong();
+        int senderId = buffer.getInt();
+        int nameLength = buffer.get() & 0xFF;
+        if (nameLength > buffer.remaining()) throw new IOException("Frame name exceeds frame");
+
+        int nameStart = buffer.position();
+        String senderName = new String(data, nameStart, nameLength, StandardCharsets.UTF_8);
+        int payloadStart = nameStart + nameLength;
+        String room = null;
+        if (type == ROOM_MESSAGE) {
+            if (payloadStart == offset + length) throw new IOException("Frame room is missing");
+            int roomLength = data[payloadStart] & 0xFF;
+            if (payloadStart + 1 + roomLength > offset + length) throw new IOException("Frame room exceeds frame");
+            room = new String(data, payloadStart + 1, roomLength, StandardCharsets.UTF_8);
+            payloadStart += 1 + roomLength;
+        }
+        String payload = new String(data, payloadStart, offset + length - payloadStart, StandardCharsets.UTF_8);
+        return new Frame(type, timestamp, senderId, senderName, room, payload);
+    }
+
+    /**
+     * Reads the next frame from a blocking stream.
+     *
+     * @return The frame, or null at end of stream
+     * @throws IOException if the frame is malformed or larger than maxFrameSize
+     */
+    public static Frame read(DataInputStream in, int maxFrameSize) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < HEADER_SIZE || length > maxFrameSize) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return decode(data, 0, length);
+    }
+
+    /**
+     * Writes a frame to a blocking stream (the caller decides when to flush).
+     */
+    public static void write(DataOutputStream out, byte type, long timestamp, int senderId, String senderName, String payload) throws IOException {
+        byte[] name = nameBytes(senderName);
+        byte[] body = payload.getBytes(StandardCharsets.UTF_8);
+
+        out.writeInt(HEADER_SIZE + name.length + body.length);
+        out.writeByte(type);
+        out.writeLong(timestamp);
+        out.writeInt(senderId);
+        out.writeByte(name.length);
+        out.write(name);
+        out.write(body);
+    }
+
+    /**
+     * Checks whether the given bytes start with MAGIC. Only the first
+     * Math.min(length, MAGIC.length) bytes are compared.
+     */
+    public static boolean matchesMagic(byte[] data, int offset, int length) {
+        int n = Math.min(length, MAGIC.length);
+        return Arrays.equals(data, offset, offset + n, MAGIC, 0, n);
+    }
+
+    /**
+     * Checks whether a username fits into the senderName field of a frame.
+     */
+    public static boolean isValidName(String userName) {
+        return userName.getBytes(StandardCharsets.UTF_8).length <= MAX_NAME_LENGTH;
+    }
+
+    private static byte[] nameBytes(String senderName) {
+        byte[] name = senderName.getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Sender name longer than " + MAX_NAME_LENGTH + " bytes");
+        }
+        return name;
+    }
+}
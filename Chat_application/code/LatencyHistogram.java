@@ -0,0 +1,195 @@
+package chat;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * LatencyHistogram - Records latencies with a fixed relative precision, in the style of
+ * HdrHistogram, so high percentiles stay accurate without keeping every sample.
+ *
+ * Values are counted in buckets that double in width: each bucket has the same number
+ * of sub-buckets, enough to tell values apart to the requested number of significant
+ * digits. Recording is an index computation and an array increment.
+ *
+ * Not thread-safe: each recording thread keeps its own histogram, and they are added
+ * together for the report.
+ */
+public class LatencyHistogram {
+
+    private final long highestTrackableValue;
+    private final int significantDigits;
+    private final int subBucketHalfCountMagnitude;
+    private final int subBucketHalfCount;
+    private final long subBucketMask;
+    private final long[] counts;
+
+    private long totalCount;
+    private long minValue = Long.MAX_VALUE;
+    private long maxValue;
+    private double sum;
+    private double sumOfSquares;
+
+    /**
+     * @param highestTrackableValue Largest value kept exactly; larger ones are recorded as this
+     * @param significantDigits     Precision of the recorded values, 1 to 5
+     */
+    public LatencyHistogram(long highestTrackableValue, int significantDigits) {
+        if (highestTrackableValue < 2 || significantDigits < 1 || significantDigits > 5) {
+            throw new IllegalArgumentException("Invalid histogram range or precision");
+        }
+        this.highestTrackableValue = highestTrackableValue;
+        this.significantDigits = significantDigits;
+
+        long largestSingleUnitValue = 2 * (long) Math.pow(10, significantDigits);
+        int subBucketCountMagnitude = 64 - Long.numberOfLeadingZeros(largestSingleUnitValue - 1);
+        this.subBucketHalfCountMagnitude = subBucketCountMagnitude - 1;
+        int subBucketCount = 1 << subBucketCountMagnitude;
+        this.subBucketHalfCount = subBucketCount / 2;
+        this.subBucketMask = subBucketCount - 1;
+
+        // Buckets needed until the largest one covers the highest trackable value
+        int bucketCount = 1;
+        long smallestUntrackable = subBucketCount;
+        while (smallestUntrackable <= highestTrackableValue) {
+            smallestUntrackable <<= 1;
+            bucketCount++;
+        }
+        this.counts = new long[(bucketCount + 1) * subBucketHalfCount];
+    }
+
+    /**
+     * Counts one value. Negative values count as 0.
+     */
+    public void record(long value) {
+        value = Math.max(0, Math.min(value, highestTrackableValue));
+        counts[indexOf(value)]++;
+        totalCount++;
+        sum += value;
+        sumOfSquares += (double) value * value;
+        if (value < minValue) minValue = value;
+        if (value > maxValue) maxValue = value;
+    }
+
+    /**
+     * Adds the counts of another histogram with the same range and precision.
+     */
+    public void add(LatencyHistogram other) {
+        if (other.counts.length != counts.length || other.significantDigits != significantDigits) {
+            throw new IllegalArgumentException("Histograms have different ranges or precisions");
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum += other.sum;
+        sumOfSquares += other.sumOfSquares;
+        minValue = Math.min(minValue, other.minValue);
+        maxValue = Math.max(maxValue, other.maxValue);
+    }
+
+    /**
+     * Forgets all recorded values.
+     */
+    public void reset() {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        sum = 0;
+        sumOfSquares = 0;
+        minValue = Long.MAX_VALUE;
+        maxValue = 0;
+    }
+
+    private int indexOf(long value) {
+        int bucketIndex = 64 - Long.numberOfLeadingZeros(value | subBucketMask) - (subBucketHalfCountMagnitude + 1);
+        int subBucketIndex = (int) (value >>> bucketIndex);
+        return ((bucketIndex + 1) << subBucketHalfCountMagnitude) + (subBucketIndex - subBucketHalfCount);
+    }
+
+    /**
+     * Returns the largest value that falls into the same bucket as the value at the given index.
+     */
+    private long highestValueAt(int index) {
+        int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+        int subBucketIndex = (index & (subBucketHalfCount - 1)) + subBucketHalfCount;
+        if (bucketIndex < 0) {
+            subBucketIndex -= subBucketHalfCount;
+            bucketIndex = 0;
+        }
+        long lowest = (long) subBucketIndex << bucketIndex;
+        return lowest + (1L << bucketIndex) - 1;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMinValue() {
+        return totalCount == 0 ? 0 : minValue;
+    }
+
+    public long getMaxValue() {
+        return maxValue;
+    }
+
+    public double getMean() {
+        return totalCount == 0 ? 0 : sum / totalCount;
+    }
+
+    public double getStdDeviation() {
+        if (totalCount == 0) return 0;
+        double mean = getMean();
+        return Math.sqrt(Math.max(0, sumOfSquares / totalCount - mean * mean));
+    }
+
+    /**
+     * Returns the value below which the given percentage of the recorded values lie
+     * (to the histogram's precision).
+     *
+     * @param percentile 0 to 100
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) return 0;
+        long countAtPercentile = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= countAtPercentile) return Math.min(highestValueAt(i), maxValue);
+        }
+        return maxValue;
+    }
+
+    /**
+     * Prints the percentile distribution in the HdrHistogram text format (.hgrm), which
+     * existing plotting tools read. Percentiles get finer towards the tail.
+     *
+     * @param unitScale Recorded values are divided by this for printing, e.g. 1000.0 for us -> ms
+     */
+    public void printPercentileDistribution(PrintStream out, double unitScale) {
+        out.println(String.format("%12s %14s %10s %14s", "Value", "Percentile", "TotalCount", "1/(1-Percentile)"));
+        out.println();
+        if (totalCount == 0) return;
+
+        long seen = 0;
+        double nextPercentile = 0;
+        int ticksPerHalf = 5;
+        for (int i = 0; i < counts.length && seen < totalCount; i++) {
+            if (counts[i] == 0) continue;
+            seen += counts[i];
+            double percentile = 100.0 * seen / totalCount;
+            if (percentile < nextPercentile && seen < totalCount) continue;
+
+            double fraction = percentile / 100.0;
+            String inverse = fraction < 1.0 ? String.format("%14.2f", 1.0 / (1.0 - fraction)) : "";
+            out.println(String.format("%12.3f %2.12f %10d %s",
+                    Math.min(highestValueAt(i), maxValue) / unitScale, fraction, seen, inverse));
+
+            // Halve the remaining distance to 100%, in ticksPerHalf steps each time
+            double remaining = 100.0 - percentile;
+            double halving = Math.pow(2, Math.floor(Math.log(100.0 / Math.max(remaining, 1e-9)) / Math.log(2)) + 1);
+            nextPercentile = percentile + 100.0 / (halving * ticksPerHalf);
+        }
+        out.println(String.format("#[Mean    = %12.3f, StdDeviation   = %12.3f]", getMean() / unitScale, getStdDeviation() / unitScale));
+        out.println(String.format("#[Max     = %12.3f, Total count    = %12d]", maxValue / unitScale, totalCount));
+        out.println(String.format("#[Buckets = %12d, SubBuckets     = %12d]", counts.length / subBucketHalfCount - 1, subBucketHalfCount * 2));
+    }
+}
@@ -0,0 +1,639 @@
+package chat;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LoadGenerator - Headless load test for the chat server.
+ *
+ * Opens many simulated clients on a few selector threads, lets --senders of them send
+ * at a fixed total --rate and, with --churn, replaces other clients at that rate. Each
+ * message carries the time it was due to be sent, and every receiver records "now - due",
+ * so the histogram is the end-to-end broadcast latency, including any time the generator
+ * itself fell behind schedule (no coordinated omission).
+ *
+ * The first --warmup seconds of sending are not measured. Afterwards throughput and
+ * latency percentiles are printed; --report appends them as a CSV row, so runs against
+ * different server modes can be compared, and --hgrm writes the full distribution.
+ *
+ *     java chat.LoadGenerator --servers=127.0.0.1:5000 --clients=2000 --senders=20 --rate=2000 --duration=30
+ *
+ * The server must accept plain names (the default --auth=optional). It also limits each
+ * client to 20 messages per second by default; for more per sender, start it with
+ * --rate-limit=0 or a higher limit, or the senders are slowed down to that limit.
+ */
+public class LoadGenerator {
+
+    // Latencies are recorded in microseconds, up to an hour, to 3 significant digits
+    private static final long HIGHEST_LATENCY_MICROS = TimeUnit.HOURS.toMicros(1);
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    // The servers' --rate-limit unless they are started with another one
+    private static final int DEFAULT_SERVER_RATE_LIMIT = new ServerConfig().rateLimit;
+
+    // Messages one thread sends in one go at most before it looks at its sockets again
+    private static final int MAX_BURST = 1000;
+
+    // Writes queued for a client whose socket buffer is full, before messages are skipped
+    private static final int MAX_PENDING_WRITES = 10_000;
+
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final int MAX_READ_BUFFER_SIZE = 1024 * 1024;
+
+    // Options (see parse)
+    private List<InetSocketAddress> servers = new ArrayList<>();
+    private int clients = 1000;
+    private int senders = 10;
+    private double rate = 1000;        // Messages per second, all senders together
+    private int durationSeconds = 30;  // Measured time
+    private int warmupSeconds = 5;     // Sending before the measurement starts
+    private double churn = 0;          // Clients replaced per second
+    private double connectRate = 1000; // New connections per second while starting up
+    private int messageSize = 0;       // Extra bytes of text per message
+    private WireProtocol protocol = WireProtocol.TEXT;
+    private String room = "";          // Room the clients join, empty for the default room
+    private int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private String label = "";         // Name of the run in the report, e.g. the server mode
+    private String report = "";        // CSV file to append the results to
+    private String hgrm = "";          // File for the percentile distribution
+
+    private final String runId = Long.toString(System.currentTimeMillis() % 1_000_000, 36);
+
+    // Marks the send time in a message: "... lg-<runId> <nanoTime>". Messages of earlier
+    // runs (replayed from the history) have another run id.
+    private final byte[] marker = ("lg-" + runId + " ").getBytes(StandardCharsets.US_ASCII);
+
+    // Phases, set by the main thread; 0 means "not yet"
+    private volatile long sendStartNanos;
+    private volatile long measureStartNanos;
+    private volatile long measureEndNanos;
+    private volatile boolean running = true;
+
+    private Worker[] workers;
+
+    /**
+     * One simulated client.
+     */
+    private static class Client {
+        final int id;
+        final String name;
+        final boolean sender;
+        SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+        long connectedNanos; // Messages due before this were sent before we joined (history replay)
+        boolean connected;
+
+        Client(int id, String name, boolean sender) {
+            this.id = id;
+            this.name = name;
+            this.sender = sender;
+        }
+    }
+
+    /**
+     * A selector thread with its share of the clients, the sending and the churn.
+     */
+    private class Worker implements Runnable {
+        final Selector selector;
+        final List<Client> senderClients = new ArrayList<>();
+        final List<Client> otherClients = new ArrayList<>();
+        final LatencyHistogram histogram = new LatencyHistogram(HIGHEST_LATENCY_MICROS, SIGNIFICANT_DIGITS);
+
+        int toConnect;        // Initial clients this worker still has to open
+        int nextClientId;     // Ids are index, index + threads, ... so they are unique overall
+        int nextSender;
+        double nextSendNanos;
+        double nextChurnNanos;
+        double nextConnectNanos;
+        double sendIntervalNanos;
+
+        // Counters, read by the main thread for progress output and the report
+        volatile int connected;
+        volatile long sent;           // Messages due during the measurement
+        volatile long delivered;      // Deliveries of those messages
+        volatile long skipped;        // Messages not sent because the server did not read
+        volatile int failed;          // Connections that could not be opened
+        volatile int closedByServer;
+        volatile int churned;
+
+        Worker(int index, int clientCount, int senderCount) throws IOException {
+            this.selector = Selector.open();
+            this.toConnect = clientCount;
+            this.nextClientId = index;
+            this.sendIntervalNanos = senderCount == 0 ? 0 : 1e9 / (rate * senderCount / senders);
+        }
+
+        @Override
+        public void run() {
+            nextConnectNanos = System.nanoTime();
+            try {
+                while (running) {
+                    long now = System.nanoTime();
+                    openConnections(now);
+                    sendDue(now);
+                    churnDue(now);
+
+                    long wakeAt = (long) Math.min(nextDueNanos(now), now + TimeUnit.MILLISECONDS.toNanos(100));
+                    if (wakeAt <= now) {
+                        selector.selectNow();
+                    } else {
+                        // Millisecond resolution; the due time in each message keeps the measurement exact
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wakeAt - now)));
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        handle(key);
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    close((Client) key.attachment());
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private double nextDueNanos(long now) {
+            double next = Double.MAX_VALUE;
+            if (toConnect > 0) next = nextConnectNanos;
+            if (sendStartNanos != 0 && now < measureEndNanos) {
+                if (!senderClients.isEmpty()) next = Math.min(next, Math.max(nextSendNanos, sendStartNanos));
+                if (churn > 0) next = Math.min(next, Math.max(nextChurnNanos, sendStartNanos));
+            }
+            return next;
+        }
+
+        private void openConnections(long now) {
+            double interval = 1e9 / (connectRate / threads);
+            while (toConnect > 0 && nextConnectNanos <= now) {
+                int id = nextClientId;
+                nextClientId += threads;
+                toConnect--;
+                nextConnectNanos += interval;
+                open(new Client(id, "load-" + runId + "-" + id, id < senders));
+            }
+        }
+
+        private void open(Client client) {
+            try {
+                client.channel = SocketChannel.open();
+                client.channel.configureBlocking(false);
+                client.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                client.channel.connect(servers.get(client.id % servers.size()));
+                client.key = client.channel.register(selector, SelectionKey.OP_CONNECT, client);
+                (client.sender ? senderClients : otherClients).add(client);
+            } catch (IOException e) {
+                failed++;
+                close(client);
+            }
+        }
+
+        /**
+         * Sends the messages that are due, round-robin over this worker's senders.
+         */
+        private void sendDue(long now) {
+            long start = sendStartNanos;
+            if (start == 0 || now < start || senderClients.isEmpty() || now >= measureEndNanos) return;
+            if (nextSendNanos < start) nextSendNanos = start;
+
+            for (int burst = 0; nextSendNanos <= now && burst < MAX_BURST; burst++) {
+                long due = (long) nextSendNanos;
+                nextSendNanos += sendIntervalNanos;
+                Client client = senderClients.get(nextSender++ % senderClients.size());
+                if (!client.connected) continue;
+                if (client.pending.size() >= MAX_PENDING_WRITES) {
+                    skipped++;
+                    continue;
+                }
+                write(client, encode(client, "lg-" + runId + " " + due));
+                if (due >= measureStartNanos) sent++;
+            }
+        }
+
+        /**
+         * Replaces a random non-sending client with a new one.
+         */
+        private void churnDue(long now) {
+            if (sendStartNanos == 0 || churn <= 0 || now >= measureEndNanos) return;
+            if (nextChurnNanos == 0) nextChurnNanos = sendStartNanos;
+            double interval = 1e9 / (churn / threads);
+            while (nextChurnNanos <= now) {
+                nextChurnNanos += interval;
+                if (otherClients.isEmpty()) continue;
+                Client old = otherClients.get(ThreadLocalRandom.current().nextInt(otherClients.size()));
+                close(old);
+                int id = nextClientId;
+                nextClientId += threads;
+                open(new Client(id, "load-" + runId + "-" + id, false));
+                churned++;
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            Client client = (Client) key.attachment();
+            try {
+                if (!key.isValid()) return;
+                if (key.isConnectable()) {
+                    client.channel.finishConnect();
+                    key.interestOps(SelectionKey.OP_READ);
+                    onConnected(client);
+                }
+                if (key.isValid() && key.isReadable()) read(client);
+                if (key.isValid() && key.isWritable()) flush(client);
+            } catch (IOException e) {
+                if (!client.connected) failed++;
+                close(client);
+            }
+        }
+
+        private void onConnected(Client client) throws IOException {
+            client.connected = true;
+            client.connectedNanos = System.nanoTime();
+            connected++;
+            if (protocol == WireProtocol.BINARY) {
+                write(client, ByteBuffer.wrap(FrameCodec.MAGIC));
+                write(client, FrameCodec.encode(FrameCodec.HELLO, 0, 0, "", client.name));
+            } else {
+                write(client, StandardCharsets.UTF_8.encode(client.name + "\n"));
+            }
+            if (!room.isEmpty()) write(client, encode(client, "/join " + room));
+        }
+
+        private ByteBuffer encode(Client client, String text) {
+            if (messageSize > 0) text = "x".repeat(messageSize) + " " + text;
+            if (protocol == WireProtocol.BINARY) {
+                return FrameCodec.encode(FrameCodec.MESSAGE, 0, 0, client.name, text);
+            }
+            return StandardCharsets.UTF_8.encode(text + "\n");
+        }
+
+        private void write(Client client, ByteBuffer buffer) {
+            if (client.pending.isEmpty()) {
+                try {
+                    client.channel.write(buffer);
+                } catch (IOException e) {
+                    close(client);
+                    return;
+                }
+                if (!buffer.hasRemaining()) return;
+                client.key.interestOps(client.key.interestOps() | SelectionKey.OP_WRITE);
+            }
+            client.pending.add(buffer);
+        }
+
+        private void flush(Client client) throws IOException {
+            while (!client.pending.isEmpty()) {
+                ByteBuffer next = client.pending.peek();
+                client.channel.write(next);
+                if (next.hasRemaining()) return;
+                client.pending.poll();
+            }
+            client.key.interestOps(SelectionKey.OP_READ);
+        }
+
+        private void read(Client client) throws IOException {
+            int n = client.channel.read(client.in);
+            if (n < 0) {
+                closedByServer++;
+                close(client);
+                return;
+            }
+            ByteBuffer in = client.in;
+            in.flip();
+            if (protocol == WireProtocol.BINARY) {
+                readFrames(client, in);
+            } else {
+                readLines(client, in);
+            }
+            in.compact();
+
+            if (!in.hasRemaining()) {
+                // A line or frame larger than the buffer
+                if (in.capacity() >= MAX_READ_BUFFER_SIZE) throw new IOException("Message too large");
+                ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+                in.flip();
+                larger.put(in);
+                client.in = larger;
+            }
+        }
+
+        private void readLines(Client client, ByteBuffer in) {
+            int start = in.position();
+            for (int i = start; i < in.limit(); i++) {
+                if (in.get(i) == '\n') {
+                    received(client, in, start, i);
+                    start = i + 1;
+                }
+            }
+            in.position(start);
+        }
+
+        private void readFrames(Client client, ByteBuffer in) throws IOException {
+            while (in.remaining() >= 4) {
+                int start = in.position();
+                int length = in.getInt(start);
+                if (length < FrameCodec.HEADER_SIZE || length > MAX_READ_BUFFER_SIZE) throw new IOException("Invalid frame length");
+                if (in.remaining() < 4 + length) return;
+
+                int end = start + 4 + length;
+                if (in.get(start + 4) == FrameCodec.MESSAGE) {
+                    int nameLength = in.get(start + 4 + FrameCodec.HEADER_SIZE - 1) & 0xFF;
+                    received(client, in, start + 4 + FrameCodec.HEADER_SIZE + nameLength, end);
+                }
+                in.position(end);
+            }
+        }
+
+        /**
+         * Records the latency of a received message ending in our marker and a send time.
+         * Other messages (notices, joins, replayed history) are ignored.
+         */
+        private void received(Client client, ByteBuffer in, int start, int end) {
+            if (end > start && in.get(end - 1) == '\r') end--;
+            int digits = end;
+            while (digits > start && Character.isDigit(in.get(digits - 1))) digits--;
+            if (digits == end || digits - start < marker.length) return;
+            for (int i = 0; i < marker.length; i++) {
+                if (in.get(digits - marker.length + i) != marker[i]) return;
+            }
+
+            long due = 0;
+            for (int i = digits; i < end; i++) {
+                due = due * 10 + (in.get(i) - '0');
+            }
+            if (due < client.connectedNanos || due < measureStartNanos || due >= measureEndNanos) return;
+
+            histogram.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - due));
+            delivered++;
+        }
+
+        private void close(Client client) {
+            if (client.channel == null || !client.channel.isOpen()) return;
+            if (client.connected) connected--;
+            client.connected = false;
+            (client.sender ? senderClients : otherClients).remove(client);
+            try {
+                client.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // === RUN ===
+
+    /**
+     * Connects the clients, sends for warmup + duration seconds, waits for the last
+     * deliveries and prints the report.
+     */
+    public void run() throws IOException, InterruptedException {
+        workers = new Worker[threads];
+        Thread[] workerThreads = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            int count = clients / threads + (i < clients % threads ? 1 : 0);
+            int senderCount = senders / threads + (i < senders % threads ? 1 : 0);
+            workers[i] = new Worker(i, count, senderCount);
+            workerThreads[i] = new Thread(workers[i], "load-worker-" + i);
+            workerThreads[i].start();
+        }
+
+        if (senders > 0 && rate / senders > DEFAULT_SERVER_RATE_LIMIT) {
+            System.out.println("[LOAD] Each sender sends " + (rate / senders) + " messages/s; start the servers with --rate-limit=0"
+                    + " or a higher limit, otherwise they slow the senders down to " + DEFAULT_SERVER_RATE_LIMIT + " messages/s.");
+        }
+        System.out.println("[LOAD] Connecting " + clients + " clients to " + servers + "...");
+        long connectDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos((long) (clients / connectRate) + 30);
+        while (connectedClients() + failedClients() < clients && System.nanoTime() < connectDeadline) {
+            Thread.sleep(100);
+        }
+        System.out.println("[LOAD] " + connectedClients() + " connected, " + failedClients() + " failed.");
+        Thread.sleep(500); // Let the server finish the joins
+
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+        measureStartNanos = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        measureEndNanos = measureStartNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+        sendStartNanos = start;
+        System.out.println("[LOAD] Sending " + rate + " messages/s from " + senders + " clients"
+                + (churn > 0 ? ", replacing " + churn + " clients/s" : "") + ", " + warmupSeconds + " s warmup...");
+
+        long lastDelivered = 0;
+        while (System.nanoTime() < measureEndNanos) {
+            Thread.sleep(1000);
+            long delivered = 0;
+            for (Worker worker : workers) delivered += worker.delivered;
+            System.out.println("[LOAD] " + connectedClients() + " connected, " + (delivered - lastDelivered) + " deliveries/s measured");
+            lastDelivered = delivered;
+        }
+
+        // Messages sent at the end are still on their way
+        Thread.sleep(2000);
+        running = false;
+        for (int i = 0; i < threads; i++) {
+            workers[i].selector.wakeup();
+            workerThreads[i].join();
+        }
+        report();
+    }
+
+    private int connectedClients() {
+        int total = 0;
+        for (Worker worker : workers) total += worker.connected;
+        return total;
+    }
+
+    private int failedClients() {
+        int total = 0;
+        for (Worker worker : workers) total += worker.failed;
+        return total;
+    }
+
+    // === REPORT ===
+
+    private void report() throws IOException {
+        LatencyHistogram histogram = new LatencyHistogram(HIGHEST_LATENCY_MICROS, SIGNIFICANT_DIGITS);
+        long sent = 0, delivered = 0, skipped = 0;
+        int failed = 0, closedByServer = 0, churned = 0;
+        for (Worker worker : workers) {
+            histogram.add(worker.histogram);
+            sent += worker.sent;
+            delivered += worker.delivered;
+            skipped += worker.skipped;
+            failed += worker.failed;
+            closedByServer += worker.closedByServer;
+            churned += worker.churned;
+        }
+
+        double seconds = durationSeconds;
+        double[] percentiles = { 50, 90, 99, 99.9, 99.99 };
+        StringBuilder latency = new StringBuilder();
+        for (double p : percentiles) {
+            latency.append(String.format(Locale.ROOT, "p%s=%.3f ", formatPercentile(p), histogram.getValueAtPercentile(p) / 1000.0));
+        }
+
+        System.out.println();
+        System.out.println("=== Load test" + (label.isEmpty() ? "" : " '" + label + "'") + " ===");
+        System.out.println("servers " + servers + ", " + clients + " clients, " + senders + " senders, "
+                + rate + " msg/s, " + protocol.name().toLowerCase(Locale.ROOT) + (room.isEmpty() ? "" : ", room #" + room)
+                + ", " + durationSeconds + " s measured");
+        System.out.println(String.format(Locale.ROOT, "sent       %d messages (%.1f/s), %d skipped", sent, sent / seconds, skipped));
+        System.out.println(String.format(Locale.ROOT, "delivered  %d (%.1f/s), %.1f recipients per message",
+                delivered, delivered / seconds, sent == 0 ? 0.0 : (double) delivered / sent));
+        System.out.println("clients    " + failed + " failed to connect, " + closedByServer + " closed by the server, " + churned + " replaced");
+        System.out.println(String.format(Locale.ROOT, "latency ms min=%.3f %smax=%.3f mean=%.3f",
+                histogram.getMinValue() / 1000.0, latency, histogram.getMaxValue() / 1000.0, histogram.getMean() / 1000.0));
+
+        if (!report.isEmpty()) appendCsv(histogram, sent, delivered, skipped, closedByServer);
+        if (!hgrm.isEmpty()) {
+            try (PrintStream out = new PrintStream(new FileOutputStream(hgrm), false, StandardCharsets.UTF_8)) {
+                histogram.printPercentileDistribution(out, 1000.0);
+            }
+            System.out.println("Latency distribution (ms) written to " + hgrm);
+        }
+    }
+
+    private void appendCsv(LatencyHistogram histogram, long sent, long delivered, long skipped, int closedByServer) throws IOException {
+        Path path = Path.of(report);
+        boolean exists = Files.exists(path);
+        try (PrintStream out = new PrintStream(new FileOutputStream(report, true), false, StandardCharsets.UTF_8)) {
+            if (!exists) {
+                out.println("time,label,servers,protocol,clients,senders,rate,churn,duration_s,sent_per_s,delivered_per_s,"
+                        + "skipped,closed_by_server,min_ms,p50_ms,p90_ms,p99_ms,p99_9_ms,p99_99_ms,max_ms,mean_ms");
+            }
+            out.println(String.join(",",
+                    LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME),
+                    label,
+                    servers.toString().replace(",", ";"),
+                    protocol.name().toLowerCase(Locale.ROOT),
+                    Integer.toString(clients),
+                    Integer.toString(senders),
+                    Double.toString(rate),
+                    Double.toString(churn),
+                    Integer.toString(durationSeconds),
+                    format(sent / (double) durationSeconds),
+                    format(delivered / (double) durationSeconds),
+                    Long.toString(skipped),
+                    Integer.toString(closedByServer),
+                    format(histogram.getMinValue() / 1000.0),
+                    format(histogram.getValueAtPercentile(50) / 1000.0),
+                    format(histogram.getValueAtPercentile(90) / 1000.0),
+                    format(histogram.getValueAtPercentile(99) / 1000.0),
+                    format(histogram.getValueAtPercentile(99.9) / 1000.0),
+                    format(histogram.getValueAtPercentile(99.99) / 1000.0),
+                    format(histogram.getMaxValue() / 1000.0),
+                    format(histogram.getMean() / 1000.0)));
+        }
+        System.out.println("Results appended to " + report);
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static String formatPercentile(double p) {
+        return p == Math.rint(p) ? Long.toString((long) p) : Double.toString(p);
+    }
+
+    // === OPTIONS ===
+
+    /**
+     * Parses the command line, in the same --name=value form as ServerConfig.
+     *
+     * @throws IllegalArgumentException if an option is unknown or has an invalid value
+     */
+    public static LoadGenerator parse(String[] args) {
+        LoadGenerator load = new LoadGenerator();
+        String serverList = "127.0.0.1:5000";
+
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got: " + arg);
+            }
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+
+            try {
+                switch (name) {
+                    case "servers":      serverList = value; break;
+                    case "clients":      load.clients = Integer.parseInt(value); break;
+                    case "senders":      load.senders = Integer.parseInt(value); break;
+                    case "rate":         load.rate = Double.parseDouble(value); break;
+                    case "duration":     load.durationSeconds = Integer.parseInt(value); break;
+                    case "warmup":       load.warmupSeconds = Integer.parseInt(value); break;
+                    case "churn":        load.churn = Double.parseDouble(value); break;
+                    case "connect-rate": load.connectRate = Double.parseDouble(value); break;
+                    case "message-size": load.messageSize = Integer.parseInt(value); break;
+                    case "protocol":     load.protocol = WireProtocol.valueOf(value.toUpperCase(Locale.ROOT)); break;
+                    case "room":         load.room = value; break;
+                    case "threads":      load.threads = Integer.parseInt(value); break;
+                    case "label":        load.label = value; break;
+                    case "report":       load.report = value; break;
+                    case "hgrm":         load.hgrm = value; break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: --" + name);
+                }
+            } catch (IllegalArgumentException e) {
+                if (e.getMessage() != null && e.getMessage().startsWith("Unknown option")) throw e;
+                throw new IllegalArgumentException("Invalid value for --" + name + ": " + value);
+            }
+        }
+
+        for (String server : serverList.split(",")) {
+            int colon = server.lastIndexOf(':');
+            if (colon <= 0) throw new IllegalArgumentException("Expected host:port in --servers but got: " + server);
+            try {
+                load.servers.add(new InetSocketAddress(server.substring(0, colon).trim(), Integer.parseInt(server.substring(colon + 1).trim())));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid port in --servers: " + server);
+            }
+        }
+
+        if (load.clients < 2 || load.senders < 1 || load.senders > load.clients) {
+            throw new IllegalArgumentException("--clients must be at least 2 and --senders between 1 and --clients");
+        }
+        if (load.rate <= 0 || load.connectRate <= 0 || load.churn < 0) {
+            throw new IllegalArgumentException("--rate and --connect-rate must be positive, --churn must not be negative");
+        }
+        if (load.durationSeconds < 1 || load.warmupSeconds < 0 || load.messageSize < 0) {
+            throw new IllegalArgumentException("--duration must be at least 1, --warmup and --message-size not negative");
+        }
+        if (load.threads < 1) {
+            throw new IllegalArgumentException("--threads must be at least 1");
+        }
+        if (!load.room.isEmpty() && !RoomRegistry.isValidName(load.room)) {
+            throw new IllegalArgumentException("Invalid room name: " + load.room);
+        }
+        load.threads = Math.min(load.threads, load.clients);
+        return load;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        parse(args).run();
+    }
+}
@@ -0,0 +1,307 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * LogSegment - One piece of the MessageLog: the same messages stored twice, as binary
+ * frames (<first sequence>.frames) and as text lines (<first sequence>.lines), so a
+ * replay can hand either protocol's bytes to a socket without re-encoding them.
+ *
+ * Both files are preallocated and memory-mapped. Only the MessageLog's writer thread
+ * appends; any thread may read the records below getCount(), which is published after
+ * their bytes are in place.
+ *
+ * Every INDEX_INTERVAL-th record gets an index entry (timestamp, frame offset, line
+ * offset), so finding a record by number or time is a lookup plus a short scan.
+ * The index is kept in memory and rebuilt from the frames when the server starts.
+ *
+ * Messages relayed from other cluster nodes carry the sending node's clock, so the
+ * stored timestamps are not always in order. Searches by time use the newest timestamp
+ * up to each record instead, which only ever grows: a record counts as at least as
+ * recent as every record before it.
+ */
+public class LogSegment {
+
+    // Records per index entry
+    static final int INDEX_INTERVAL = 64;
+
+    // Offset of the timestamp within a stored frame (after the length and type fields)
+    private static final int TIMESTAMP_OFFSET = 4 + 1;
+
+    private final long baseSequence; // Sequence number of the first record
+    private final Path framesPath;
+    private final Path linesPath;
+    private final FileChannel framesChannel;
+    private final FileChannel linesChannel;
+
+    // Read-only views for readers (only absolute gets and duplicates), and the writer's views
+    private final ByteBuffer frames;
+    private final ByteBuffer lines;
+    private final MappedByteBuffer framesWriter;
+    private final MappedByteBuffer linesWriter;
+
+    // Sparse index: entry k describes record k * INDEX_INTERVAL
+    private long[] indexTimes = new long[16];
+    private int[] indexFrames = new int[16];
+    private int[] indexLines = new int[16];
+
+    private volatile int count;          // Records readers may look at
+    private volatile long lastTimestamp; // Timestamp of the newest record
+
+    private LogSegment(Path dir, long baseSequence, int capacity) throws IOException {
+        this.baseSequence = baseSequence;
+        String name = String.format("%020d", baseSequence);
+        this.framesPath = dir.resolve(name + ".frames");
+        this.linesPath = dir.resolve(name + ".lines");
+
+        this.framesChannel = FileChannel.open(framesPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.linesChannel = FileChannel.open(linesPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.framesWriter = framesChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(capacity, framesChannel.size()));
+        this.linesWriter = linesChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(capacity, linesChannel.size()));
+        this.frames = framesWriter.asReadOnlyBuffer();
+        this.lines = linesWriter.asReadOnlyBuffer();
+    }
+
+    /**
+     * Creates an empty segment whose first record will have the given sequence number.
+     *
+     * @param capacity Size of each of the two files in bytes
+     */
+    public static LogSegment create(Path dir, long baseSequence, int capacity) throws IOException {
+        return new LogSegment(dir, baseSequence, capacity);
+    }
+
+    /**
+     * Opens an existing segment and finds its end. A record that was only partly
+     * written when the server stopped is discarded.
+     */
+    public static LogSegment open(Path framesPath, int capacity) throws IOException {
+        String name = framesPath.getFileName().toString();
+        long baseSequence = Long.parseLong(name.substring(0, name.indexOf('.')));
+        LogSegment segment = new LogSegment(framesPath.getParent(), baseSequence, capacity);
+        segment.recover();
+        return segment;
+    }
+
+    private void recover() {
+        int framePos = 0;
+        int linePos = 0;
+        int records = 0;
+        while (framePos + 4 <= frames.capacity()) {
+            int length = frames.getInt(framePos);
+            if (length < FrameCodec.HEADER_SIZE || length > frames.capacity() - framePos - 4) break;
+            int lineEnd = lineEnd(linePos);
+            if (lineEnd < 0) break;
+
+            long timestamp = Math.max(lastTimestamp, frames.getLong(framePos + TIMESTAMP_OFFSET));
+            if (records % INDEX_INTERVAL == 0) addIndexEntry(records / INDEX_INTERVAL, timestamp, framePos, linePos);
+            lastTimestamp = timestamp;
+            framePos += 4 + length;
+            linePos = lineEnd + 1;
+            records++;
+        }
+
+        // Clear what an interrupted write left behind, so it is not mistaken for a record later
+        for (int i = framePos; i < Math.min(frames.capacity(), framePos + 4 + FrameCodec.DEFAULT_MAX_FRAME_SIZE); i++) {
+            if (frames.get(i) != 0) framesWriter.put(i, (byte) 0);
+        }
+        for (int i = linePos; i < lines.capacity() && lines.get(i) != 0; i++) {
+            linesWriter.put(i, (byte) 0);
+        }
+        framesWriter.position(framePos);
+        linesWriter.position(linePos);
+        count = records;
+    }
+
+    /**
+     * Appends one message in both encodings. Called by the writer thread only.
+     *
+     * @return false if the segment is full
+     */
+    boolean append(ByteBuffer frame, ByteBuffer line, long timestamp) {
+        if (frame.remaining() > framesWriter.remaining() || line.remaining() > linesWriter.remaining()) {
+            return false;
+        }
+        int framePos = framesWriter.position();
+        int linePos = linesWriter.position();
+        framesWriter.put(frame);
+        linesWriter.put(line);
+
+        // Records are found by counting newlines and the end by the first zero byte,
+        // so neither may appear inside a stored line
+        for (int i = linePos; i < linesWriter.position() - 1; i++) {
+            byte b = linesWriter.get(i);
+            if (b == '\n' || b == 0) linesWriter.put(i, (byte) ' ');
+        }
+
+        int records = count;
+        timestamp = Math.max(lastTimestamp, timestamp);
+        if (records % INDEX_INTERVAL == 0) addIndexEntry(records / INDEX_INTERVAL, timestamp, framePos, linePos);
+        lastTimestamp = timestamp;
+        count = records + 1; // Publishes the record to readers
+        return true;
+    }
+
+    private void addIndexEntry(int entry, long timestamp, int framePos, int linePos) {
+        if (entry == indexTimes.length) {
+            // Readers may still use the old arrays; they only need the entries published so far
+            indexTimes = Arrays.copyOf(indexTimes, entry * 2);
+            indexFrames = Arrays.copyOf(indexFrames, entry * 2);
+            indexLines = Arrays.copyOf(indexLines, entry * 2);
+        }
+        indexTimes[entry] = timestamp;
+        indexFrames[entry] = framePos;
+        indexLines[entry] = linePos;
+    }
+
+    public long getBaseSequence() {
+        return baseSequence;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the newest timestamp of any record in the segment.
+     */
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * Returns the number of the first record at or after the given time, or getCount()
+     * if there is none.
+     */
+    public int firstAtOrAfter(long timestamp) {
+        int records = count;
+        if (records == 0) return 0;
+
+        // Last index entry older than the given time
+        int low = 0;
+        int high = (records - 1) / INDEX_INTERVAL;
+        int entry = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (indexTimes[mid] < timestamp) {
+                entry = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (entry < 0) return 0;
+
+        // The entry's time is already the newest up to its record; keep that up while scanning
+        int framePos = indexFrames[entry];
+        long newest = indexTimes[entry];
+        for (int record = entry * INDEX_INTERVAL; record < records; record++) {
+            newest = Math.max(newest, frames.getLong(framePos + TIMESTAMP_OFFSET));
+            if (newest >= timestamp) return record;
+            framePos += 4 + frames.getInt(framePos);
+        }
+        return records;
+    }
+
+    /**
+     * Returns the file offsets {frame, line} where the given record starts.
+     * The record may be getCount(), which gives the end of the data.
+     */
+    private int[] locate(int record) {
+        if (record == 0) return new int[] { 0, 0 };
+
+        // Start at the entry of the previous record, which exists even if record == count
+        int entry = (record - 1) / INDEX_INTERVAL;
+        int framePos = indexFrames[entry];
+        int linePos = indexLines[entry];
+        for (int i = entry * INDEX_INTERVAL; i < record; i++) {
+            framePos += 4 + frames.getInt(framePos);
+            linePos = lineEnd(linePos) + 1;
+        }
+        return new int[] { framePos, linePos };
+    }
+
+    private int lineEnd(int from) {
+        for (int i = from; i < lines.capacity(); i++) {
+            byte b = lines.get(i);
+            if (b == '\n') return i;
+            if (b == 0) return -1;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the records [from, to) in the given protocol as a read-only view of the mapped file.
+     */
+    public ByteBuffer slice(WireProtocol protocol, int from, int to) {
+        int index = protocol == WireProtocol.BINARY ? 0 : 1;
+        int start = locate(from)[index];
+        int end = locate(to)[index];
+
+        ByteBuffer view = (protocol == WireProtocol.BINARY ? frames : lines).duplicate();
+        view.limit(end).position(start);
+        return view;
+    }
+
+    /**
+     * Sends the records [from, to) in the given protocol straight from the file to the target.
+     *
+     * @return The number of bytes sent; 0 if the segment was deleted in the meantime
+     */
+    public long transferTo(WireProtocol protocol, int from, int to, WritableByteChannel target) throws IOException {
+        int index = protocol == WireProtocol.BINARY ? 0 : 1;
+        long position = locate(from)[index];
+        long end = locate(to)[index];
+        FileChannel channel = protocol == WireProtocol.BINARY ? framesChannel : linesChannel;
+
+        long sent = 0;
+        try {
+            while (position < end) {
+                long n = channel.transferTo(position, end - position, target);
+                if (n <= 0) break;
+                position += n;
+                sent += n;
+            }
+        } catch (ClosedChannelException e) {
+            if (channel.isOpen()) throw e; // The target was closed, not this segment
+        }
+        return sent;
+    }
+
+    /**
+     * Writes the mapped pages to disk. Called when the segment is full.
+     */
+    void seal() {
+        framesWriter.force();
+        linesWriter.force();
+    }
+
+    /**
+     * Closes the files. The mapping stays valid until it is garbage collected,
+     * so slices handed out earlier can still be written to clients.
+     */
+    void close() throws IOException {
+        seal();
+        framesChannel.close();
+        linesChannel.close();
+    }
+
+    /**
+     * Closes and deletes both files.
+     */
+    void delete() throws IOException {
+        framesChannel.close();
+        linesChannel.close();
+        Files.deleteIfExists(framesPath);
+        Files.deleteIfExists(linesPath);
+    }
+}
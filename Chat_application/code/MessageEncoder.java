@@ -0,0 +1,74 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * MessageEncoder - Turns a chat line into bytes once, for all of its recipients.
+ *
+ * A broadcast encodes the message into a single read-only buffer. Every recipient
+ * gets its own view of that buffer (shareWith), which costs an object with a position
+ * and a limit, not a copy of the bytes or another charset pass.
+ *
+ * The buffers are direct, so socket writes need no copy, and they are slices of a shared
+ * slab (allocate): allocating direct memory per message is slow. Once a slab is full the
+ * next one is allocated; a full slab is freed by the GC when no queued message points
+ * into it any more, so nothing has to count when the last recipient is done.
+ */
+public final class MessageEncoder {
+
+    // Same charset the client uses for its reader and writer
+    public static final Charset CHARSET = Charset.defaultCharset();
+
+    // Size of the direct slabs encoded messages are carved out of
+    static final int SLAB_SIZE = 256 * 1024;
+
+    // Messages larger than this get a direct buffer of their own instead of using up a slab
+    static final int MAX_SLICE_SIZE = SLAB_SIZE / 8;
+
+    // Slab the next message is encoded into, guarded by slabLock
+    private static ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+    private static final ReentrantLock slabLock = new ReentrantLock();
+
+    private MessageEncoder() {
+    }
+
+    /**
+     * Returns a direct buffer of exactly size bytes for an encoded message,
+     * positioned at 0. Shard threads encode concurrently, so this is thread-safe.
+     */
+    public static ByteBuffer allocate(int size) {
+        if (size > MAX_SLICE_SIZE) return ByteBuffer.allocateDirect(size);
+
+        slabLock.lock();
+        try {
+            if (slab.remaining() < size) slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+            ByteBuffer slice = slab.slice(slab.position(), size);
+            slab.position(slab.position() + size);
+            return slice;
+        } finally {
+            slabLock.unlock();
+        }
+    }
+
+    /**
+     * Encodes a line of the text protocol (the message plus '\n').
+     *
+     * @return A read-only direct buffer positioned at the first byte
+     */
+    public static ByteBuffer encodeLine(String message) {
+        byte[] bytes = (message + "\n").getBytes(CHARSET);
+        ByteBuffer buffer = allocate(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns a recipient's view of an encoded message. The bytes are shared;
+     * only the position and limit belong to the recipient.
+     */
+    public static ByteBuffer shareWith(ByteBuffer encoded) {
+        return encoded.duplicate();
+    }
+}
@@ -0,0 +1,367 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongPredicate;
+
+/**
+ * MessageLog - Persistent chat history, so clients that join late see what they missed.
+ *
+ * Chat messages get consecutive sequence numbers and are appended to LogSegments in the
+ * history directory. The broadcasting thread only numbers and queues a message; a single
+ * writer thread copies its encodings (which the broadcast created anyway) into the mapped
+ * segment, so a slow disk never delays a broadcast.
+ *
+ * A joining client gets a Replay of the last messages: byte ranges of the segment files
+ * in its own protocol. ClientHandler sends them with FileChannel.transferTo,
+ * NioConnection writes read-only slices of the mapped files.
+ *
+ * Segments whose newest message is older than the retention period are deleted.
+ * Only the default room is logged (see RoomRegistry); other rooms have no history.
+ */
+public class MessageLog {
+
+    // Queued by close() to stop the writer thread
+    private static final ChatMessage STOP = ChatMessage.notice("");
+
+    private static final long RETENTION_CHECK_MILLIS = 60_000;
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long retentionMillis;
+    private final int replayMessages;
+    private final long replayMillis;
+
+    // Segments, oldest first; the writer appends to the last one
+    private final CopyOnWriteArrayList<LogSegment> segments = new CopyOnWriteArrayList<>();
+
+    // Sequence numbers are handed out under this lock, in the order messages are queued.
+    // When the queue is full a message is not numbered and not logged, so appending never
+    // waits for the writer and the numbers in the log stay consecutive.
+    private final ReentrantLock sequenceLock = new ReentrantLock();
+    private long lastSequence;
+    private final LinkedBlockingQueue<ChatMessage> queue;
+    private long droppedCount;  // Messages not logged because the queue was full
+    private boolean overflowed; // Set when the queue was full, cleared once it is half empty again
+
+    // Every message up to writtenSequence is in a segment; replays wait for their range
+    private volatile long writtenSequence;
+    private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+    private volatile boolean failed; // Set when writing failed; the log then stays empty
+
+    private final Thread writer;
+
+    /**
+     * A replay waiting for the writer to reach its last message.
+     */
+    private static class Waiter {
+        final long sequence;
+        final Runnable task;
+
+        Waiter(long sequence, Runnable task) {
+            this.sequence = sequence;
+            this.task = task;
+        }
+    }
+
+    /**
+     * Opens the history directory (creating it if needed) and starts the writer thread.
+     */
+    public MessageLog(ServerConfig config) throws IOException {
+        this.dir = Path.of(config.historyDir);
+        this.segmentBytes = config.historySegmentMb * 1024 * 1024;
+        this.retentionMillis = TimeUnit.HOURS.toMillis(config.historyRetentionHours);
+        this.replayMessages = config.historyReplay;
+        this.replayMillis = TimeUnit.MINUTES.toMillis(config.historyReplayMinutes);
+        this.queue = new LinkedBlockingQueue<>(config.historyQueue);
+
+        Files.createDirectories(dir);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.frames")) {
+            stream.forEach(files::add);
+        }
+        files.sort(null); // Names are zero-padded sequence numbers
+        for (Path file : files) {
+            segments.add(LogSegment.open(file, segmentBytes));
+        }
+
+        if (!segments.isEmpty()) {
+            LogSegment last = segments.get(segments.size() - 1);
+            lastSequence = last.getBaseSequence() + last.getCount() - 1;
+        }
+        writtenSequence = lastSequence;
+        System.out.println("[SERVER] History: " + lastSequence + " messages, " + segments.size() + " segments in " + dir + ".");
+
+        writer = new Thread(this::writeLoop, "chat-history");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Numbers a chat message and queues it for the writer. Never waits for the disk.
+     * Must be called before the message is sent to anyone, so that join() can tell
+     * which messages a joining client gets live.
+     *
+     * If the writer is --history-queue messages behind, the message is still broadcast
+     * but not logged (its sequence stays 0), and counted in getDroppedCount().
+     */
+    public void append(ChatMessage message) {
+        if (message.kind != ChatMessage.Kind.CHAT || failed) return;
+
+        sequenceLock.lock();
+        try {
+            message.sequence = lastSequence + 1;
+            if (queue.offer(message)) {
+                lastSequence++;
+                if (overflowed && queue.remainingCapacity() > queue.size()) overflowed = false;
+            } else {
+                message.sequence = 0;
+                droppedCount++;
+                if (!overflowed) {
+                    overflowed = true;
+                    System.out.println("[SERVER] The history writer is falling behind, messages are not logged until it catches up.");
+                }
+            }
+        } finally {
+            sequenceLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of messages that were not logged because the writer's queue was full.
+     */
+    public long getDroppedCount() {
+        sequenceLock.lock();
+        try {
+            return droppedCount;
+        } finally {
+            sequenceLock.unlock();
+        }
+    }
+
+    /**
+     * Registers a joining client so that it gets every message exactly once: no message is
+     * numbered while register runs, so each one up to the number passed to register is part
+     * of the replay, and each later one is broadcast to the client. The client skips live
+     * messages up to that number.
+     *
+     * @param register Adds the client to the registry, given the last number to replay
+     * @return The last number to replay (0 if replays are disabled), or -1 if register returned false
+     */
+    public long join(LongPredicate register) {
+        if (replayMessages == 0) return register.test(0) ? 0 : -1;
+
+        sequenceLock.lock();
+        try {
+            return register.test(lastSequence) ? lastSequence : -1;
+        } finally {
+            sequenceLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the configured replay for a joining client: at most --history-replay messages
+     * up to upTo, and only those from the last --history-replay-minutes (if set).
+     */
+    public CompletableFuture<Replay> replay(long upTo) {
+        long since = replayMillis == 0 ? 0 : System.currentTimeMillis() - replayMillis;
+        return replay(upTo, replayMessages, since);
+    }
+
+    /**
+     * Returns the last maxMessages messages up to upTo that are not older than sinceMillis.
+     * Completes once the writer has written upTo, usually right away.
+     *
+     * @param sinceMillis Epoch milliseconds, or 0 for any age
+     */
+    public CompletableFuture<Replay> replay(long upTo, int maxMessages, long sinceMillis) {
+        CompletableFuture<Replay> result = new CompletableFuture<>();
+        Waiter waiter = new Waiter(upTo, () -> result.complete(collect(upTo, maxMessages, sinceMillis)));
+
+        waiters.add(waiter);
+        // The writer may have passed upTo before we were added; whoever removes the waiter runs it
+        if ((writtenSequence >= upTo || failed) && waiters.remove(waiter)) {
+            waiter.task.run();
+        }
+        return result;
+    }
+
+    private Replay collect(long upTo, int maxMessages, long sinceMillis) {
+        Replay replay = new Replay();
+        if (failed || maxMessages == 0) return replay;
+
+        long first = Math.max(1, upTo - maxMessages + 1);
+        for (LogSegment segment : segments) {
+            long base = segment.getBaseSequence();
+            int count = segment.getCount();
+            long from = Math.max(first, base);
+            long to = Math.min(upTo, base + count - 1);
+            if (from > to) continue;
+            if (sinceMillis > 0 && segment.getLastTimestamp() < sinceMillis) continue;
+
+            int fromRecord = (int) (from - base);
+            if (sinceMillis > 0) fromRecord = Math.max(fromRecord, segment.firstAtOrAfter(sinceMillis));
+            int toRecord = (int) (to - base) + 1;
+            if (fromRecord < toRecord) replay.add(segment, fromRecord, toRecord);
+        }
+        return replay;
+    }
+
+    // === WRITER THREAD ===
+
+    private void writeLoop() {
+        List<ChatMessage> batch = new ArrayList<>();
+        long nextRetentionCheck = 0;
+        try {
+            while (true) {
+                ChatMessage first = queue.poll(RETENTION_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                    for (ChatMessage message : batch) {
+                        if (message == STOP) return;
+                        write(message);
+                        writtenSequence = message.sequence;
+                    }
+                    batch.clear();
+                    runWaiters();
+                }
+
+                long now = System.currentTimeMillis();
+                if (now >= nextRetentionCheck) {
+                    deleteExpired(now);
+                    nextRetentionCheck = now + RETENTION_CHECK_MILLIS;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("[SERVER] Writing the history failed, no more messages are logged.");
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            failed = true;
+            runWaiters();
+        }
+    }
+
+    private void write(ChatMessage message) throws IOException {
+        ByteBuffer frame = message.encodedFor(WireProtocol.BINARY);
+        ByteBuffer line = message.encodedFor(WireProtocol.TEXT);
+
+        LogSegment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (active == null || !active.append(frame, line, message.timestamp)) {
+            if (active != null) active.seal();
+            // A message larger than a segment gets a segment of its own size
+            int capacity = Math.max(segmentBytes, Math.max(frame.remaining(), line.remaining()));
+            active = LogSegment.create(dir, message.sequence, capacity);
+            segments.add(active);
+            active.append(frame, line, message.timestamp);
+        }
+    }
+
+    private void runWaiters() {
+        for (Waiter waiter : waiters) {
+            if ((waiter.sequence <= writtenSequence || failed) && waiters.remove(waiter)) {
+                waiter.task.run();
+            }
+        }
+    }
+
+    /**
+     * Deletes segments whose newest message is older than the retention period.
+     * The segment being written is kept.
+     */
+    private void deleteExpired(long now) {
+        for (int i = 0; i < segments.size() - 1; i++) {
+            LogSegment segment = segments.get(i);
+            if (segment.getLastTimestamp() >= now - retentionMillis) break;
+
+            segments.remove(i--);
+            try {
+                segment.delete();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stops the writer after it has written everything queued, and closes the segments.
+     */
+    public void close() {
+        try {
+            // Waits for room if the queue is full; the writer is draining it
+            if (queue.offer(STOP, 10, TimeUnit.SECONDS)) writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (LogSegment segment : segments) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Messages selected for a joining client, as ranges of records in one or more segments.
+     */
+    public static class Replay {
+        private final List<LogSegment> segments = new ArrayList<>();
+        private final List<int[]> ranges = new ArrayList<>();
+        private int messages;
+
+        void add(LogSegment segment, int from, int to) {
+            segments.add(segment);
+            ranges.add(new int[] { from, to });
+            messages += to - from;
+        }
+
+        /**
+         * Returns the number of messages in the replay.
+         */
+        public int size() {
+            return messages;
+        }
+
+        /**
+         * Sends the messages to a blocking channel straight from the segment files.
+         *
+         * @return The number of bytes sent
+         */
+        public long transferTo(WireProtocol protocol, WritableByteChannel target) throws IOException {
+            long sent = 0;
+            for (int i = 0; i < segments.size(); i++) {
+                int[] range = ranges.get(i);
+                sent += segments.get(i).transferTo(protocol, range[0], range[1], target);
+            }
+            return sent;
+        }
+
+        /**
+         * Returns the messages as read-only views of the mapped segment files,
+         * one buffer per segment.
+         */
+        public List<ByteBuffer> buffers(WireProtocol protocol) {
+            List<ByteBuffer> buffers = new ArrayList<>(segments.size());
+            for (int i = 0; i < segments.size(); i++) {
+                int[] range = ranges.get(i);
+                buffers.add(segments.get(i).slice(protocol, range[0], range[1]));
+            }
+            return buffers;
+        }
+    }
+}
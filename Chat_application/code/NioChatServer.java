@@ -0,0 +1,166 @@
+package chat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * NioChatServer - Non-blocking variant of the chat server.
+ *
+ * Instead of one thread per client, connections are spread over a small pool of
+ * NioEventLoop threads, each multiplexing its clients through a Selector.
+ * The wire protocol is the same as in ClientHandler, so ChatClient works unchanged.
+ * Rooms and fan-out are handled by the RoomRegistry's shards, as in the threaded server.
+ */
+public class NioChatServer {
+
+    private final ServerConfig config;
+    private final CredentialStore credentials; // Null if the server has no accounts
+    private final RoomRegistry rooms;
+    private final ServerMetrics metrics;
+    private final NioEventLoop[] loops;
+    private ServerSocketChannel serverChannel;
+
+    // Clients that completed the handshake (sent their username), by username
+    private final ClientRegistry<NioConnection> connections = new ClientRegistry<>();
+
+    public NioChatServer(ServerConfig config) throws IOException {
+        this(config, null, new RoomRegistry(config.roomShards, null));
+    }
+
+    /**
+     * @param credentials The server's accounts, or null to only accept plain names
+     * @param rooms       The chat rooms (and the default room's history)
+     */
+    public NioChatServer(ServerConfig config, CredentialStore credentials, RoomRegistry rooms) throws IOException {
+        this(config, credentials, rooms, new ServerMetrics(config, rooms, credentials));
+    }
+
+    /**
+     * @param credentials The server's accounts, or null to only accept plain names
+     * @param rooms       The chat rooms (and the default room's history)
+     * @param metrics     The metrics to count in; started by the caller
+     */
+    public NioChatServer(ServerConfig config, CredentialStore credentials, RoomRegistry rooms,
+                         ServerMetrics metrics) throws IOException {
+        this.config = config;
+        this.credentials = credentials;
+        this.rooms = rooms;
+        this.metrics = metrics;
+        metrics.setClients(connections);
+        this.loops = new NioEventLoop[config.eventLoops];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop(this, "chat-loop-" + i);
+        }
+    }
+
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    public RoomRegistry getRooms() {
+        return rooms;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Binds the port, starts the event loops and accepts clients on the calling thread.
+     * Accepted connections are handed to the loops round-robin.
+     */
+    public void startServer() {
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(new InetSocketAddress(config.port), config.acceptBacklog);
+
+            for (NioEventLoop loop : loops) {
+                loop.start();
+            }
+            System.out.println("[SERVER] Chat server (nio, " + loops.length + " event loops) started on port " + config.port + ".");
+
+            int next = 0;
+            while (serverChannel.isOpen()) {
+                try {
+                    SocketChannel channel = serverChannel.accept();
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    System.out.println("[SERVER] A new client has connected!");
+
+                    loops[next].register(channel);
+                    next = (next + 1) % loops.length;
+                } catch (IOException e) {
+                    if (!serverChannel.isOpen()) break;
+
+                    // Typically "too many open files": back off instead of taking the server down
+                    System.out.println("[SERVER] Error while accepting client: " + e.getMessage());
+                    Thread.sleep(100);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("[SERVER] Could not start the server on port " + config.port + ".");
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeServer();
+        }
+    }
+
+    /**
+     * Checks a connection's login, registration or plain name. The future completes
+     * on a hashing thread, never on an event loop.
+     */
+    CompletableFuture<CredentialStore.AuthResult> authenticate(AuthRequest request) {
+        if (credentials != null) {
+            return credentials.authenticate(request, config.auth == ServerConfig.AuthMode.REQUIRED);
+        }
+        // Without accounts only plain names can be used
+        return CompletableFuture.completedFuture(request.expectsReply()
+                ? CredentialStore.AuthResult.UNAVAILABLE : CredentialStore.AuthResult.OK);
+    }
+
+    /**
+     * Called once a connection was authenticated; the connection then joins the default room.
+     *
+     * @return false if the username is already in use, here or on another node (the connection is not added)
+     */
+    boolean register(NioConnection connection) {
+        if (rooms.isOnlineElsewhere(connection.getClientUserName())) return false;
+        return connections.register(connection.getClientUserName(), connection);
+    }
+
+    /**
+     * Called when a connection that completed the handshake goes away.
+     */
+    void leave(NioConnection connection) {
+        connections.unregister(connection.getClientUserName(), connection);
+    }
+
+    /**
+     * Stops accepting clients and shuts down all event loops.
+     */
+    public void closeServer() {
+        try {
+            if (serverChannel != null && serverChannel.isOpen()) {
+                serverChannel.close();
+                System.out.println("[SERVER] Server socket closed.");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (NioEventLoop loop : loops) {
+            loop.shutdown();
+        }
+        metrics.close();
+        if (credentials != null) credentials.close();
+        if (rooms.getCluster() != null) rooms.getCluster().close();
+        rooms.shutdown();
+        if (rooms.getHistory() != null) rooms.getHistory().close();
+    }
+}
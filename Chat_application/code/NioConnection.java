@@ -0,0 +1,522 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * NioConnection - State of one non-blocking client connection.
+ *
+ * Speaks the same protocols as ClientHandler: either lines of text or binary frames
+ * (MAGIC first), starting with a login, a registration or just a name (see AuthRequest).
+ * Reads and writes only happen on the owning NioEventLoop; other threads queue
+ * messages with send(). Password checks run on the CredentialStore's pool, and
+ * the connection stops reading until the answer is back. A client that joins gets
+ * the last messages from the MessageLog before any live message. Messages go to the
+ * client's current room (see RoomSession); the room's shard does the fan-out.
+ *
+ * Lines and frames are bounded by --max-message-bytes. A client over its rate limit
+ * is either not read from until the limit allows its next message, or has the
+ * message dropped, or is disconnected (--rate-action).
+ */
+public class NioConnection implements RoomMember {
+
+    // Failed logins allowed on one connection before it is closed
+    private static final int MAX_AUTH_ATTEMPTS = 5;
+
+    private final NioChatServer server;
+    private final NioEventLoop loop;
+    private final SocketChannel channel;
+    private SelectionKey key;
+
+    // Set once the client was authenticated
+    private volatile String clientUserName;
+    private final int sessionId = ChatMessage.nextSessionId();
+    private WireProtocol protocol; // Null until the first bytes arrive
+
+    // Received bytes not handled yet (an incomplete line or frame); null while idle
+    private byte[] pending;
+    private int pendingStart;
+    private int pendingEnd;
+    private int scanFrom; // Where the search for the next newline continues
+
+    // Longest line or frame the client may send; longer ones close the connection
+    private final int maxMessageBytes;
+    private final int maxFrameSize;
+
+    // Encoded messages waiting to be written, the batch being written, and whether a flush is pending.
+    // Messages in the batch are out of the queue, so DROP_OLDEST never cuts a line in half.
+    private final OutboundQueue<ByteBuffer> outbound;
+    private final WriteBatch batch = new WriteBatch();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    // History being sent to a joining client, ahead of the queue. Writing waits while
+    // the client joins the default room and the replay is prepared.
+    // Live messages up to replayedUpTo are skipped.
+    private ArrayDeque<ByteBuffer> replayBuffers;
+    private boolean replaying;
+    private long replayedUpTo;
+
+    private boolean registered;    // True once the username was accepted by the server
+    private RoomSession session;   // Created once the username was accepted
+    private boolean authenticating; // A login is being checked; reading is paused
+    private boolean throttled;      // Over a rate limit; reading is paused until a timer resumes it
+    private int authAttempts;
+    private boolean closeAfterFlush;
+    private boolean closed;
+
+    public NioConnection(NioChatServer server, NioEventLoop loop, SocketChannel channel) {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.outbound = new OutboundQueue<>(server.getConfig().outboundCapacity, server.getConfig().overflow);
+        this.maxMessageBytes = server.getConfig().maxMessageBytes;
+        this.maxFrameSize = FrameCodec.maxFrameSize(maxMessageBytes);
+        server.getMetrics().connectionOpened();
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    @Override
+    public String getClientUserName() {
+        return clientUserName;
+    }
+
+    @Override
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    @Override
+    public void setReplayedUpTo(long sequence) {
+        this.replayedUpTo = sequence;
+    }
+
+    /**
+     * Reads whatever is available and handles every complete line or frame.
+     * Called on the loop thread with the loop's shared read buffer.
+     */
+    void onReadable(ByteBuffer readBuffer) {
+        try {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            appendPending(readBuffer);
+            decodePending();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Handles every complete line or frame received so far.
+     */
+    private void decodePending() throws IOException {
+        if (protocol == null) detectProtocol();
+        if (protocol == WireProtocol.TEXT) {
+            decodeLines();
+        } else if (protocol == WireProtocol.BINARY) {
+            decodeFrames();
+        }
+        compactPending();
+    }
+
+    /**
+     * Binary clients start with FrameCodec.MAGIC; anything else is a text client's username.
+     */
+    private void detectProtocol() throws IOException {
+        int available = pendingEnd - pendingStart;
+        if (available == 0) return;
+
+        if (pending[pendingStart] != FrameCodec.MAGIC[0]) {
+            protocol = WireProtocol.TEXT;
+            return;
+        }
+        if (!FrameCodec.matchesMagic(pending, pendingStart, available)) {
+            throw new IOException("Unknown protocol");
+        }
+        if (available >= FrameCodec.MAGIC.length) {
+            pendingStart += FrameCodec.MAGIC.length;
+            protocol = WireProtocol.BINARY;
+        }
+    }
+
+    /**
+     * Handles every complete line in the pending bytes.
+     */
+    private void decodeLines() {
+        while (!closed && !authenticating && !throttled) {
+            int newline = -1;
+            for (int i = Math.max(scanFrom, pendingStart); i < pendingEnd; i++) {
+                if (pending[i] == '\n') {
+                    newline = i;
+                    break;
+                }
+            }
+            if (newline < 0) {
+                // Room for a trailing '\r'; anything longer can only become a line that is too long
+                if (pendingEnd - pendingStart > maxMessageBytes + 1) {
+                    lineTooLong();
+                    return;
+                }
+                // Remember where we stopped, so a long line is not scanned again on every read
+                scanFrom = pendingEnd;
+                return;
+            }
+
+            int end = newline;
+            if (end > pendingStart && pending[end - 1] == '\r') end--;
+            if (end - pendingStart > maxMessageBytes) {
+                lineTooLong();
+                return;
+            }
+            if (clientUserName != null && !closeAfterFlush && !admit()) {
+                if (throttled) return; // The line stays pending until the limit allows it
+                pendingStart = newline + 1;
+                continue;
+            }
+            String line = new String(pending, pendingStart, end - pendingStart, MessageEncoder.CHARSET);
+            pendingStart = newline + 1;
+
+            if (clientUserName == null) {
+                onAuthRequest(AuthRequest.fromLine(line));
+            } else if (!closeAfterFlush) {
+                session.send(ChatMessage.fromTextLine(sessionId, clientUserName, line));
+            }
+        }
+    }
+
+    /**
+     * Handles every complete frame in the pending bytes.
+     */
+    private void decodeFrames() throws IOException {
+        while (!closed && !authenticating && !throttled && pendingEnd - pendingStart >= 4) {
+            int length = ByteBuffer.wrap(pending, pendingStart, 4).getInt();
+            if (length < FrameCodec.HEADER_SIZE || length > maxFrameSize) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            if (pendingEnd - pendingStart - 4 < length) return;
+            if (clientUserName != null && !closeAfterFlush && !admit()) {
+                if (throttled) return; // The frame stays pending until the limit allows it
+                pendingStart += 4 + length;
+                continue;
+            }
+
+            FrameCodec.Frame frame = FrameCodec.decode(pending, pendingStart + 4, length);
+            pendingStart += 4 + length;
+
+            if (clientUserName == null) {
+                AuthRequest request = AuthRequest.fromFrame(frame);
+                if (request == null) throw new IOException("Expected a HELLO, LOGIN or REGISTER frame");
+                onAuthRequest(request);
+            } else if (frame.type == FrameCodec.MESSAGE && !closeAfterFlush) {
+                session.send(ChatMessage.chat(sessionId, clientUserName, frame.payload));
+            }
+            // Other frame types carry nothing for the server; skip them
+        }
+    }
+
+    /**
+     * Applies the rate limits to the next message. With --rate-action=delay, reading
+     * stops until the limit allows the message; the client's unread data then slows
+     * it down through TCP, while the loop serves everyone else.
+     *
+     * @return false if the message must not be sent now (see throttled and closeAfterFlush)
+     */
+    private boolean admit() {
+        long result = session.admit(System.nanoTime());
+        if (result == RoomSession.ADMITTED) return true;
+
+        server.getMetrics().rateLimited();
+        if (result == RoomSession.DISCONNECT) {
+            System.out.println("[SERVER] Client '" + clientUserName + "' is sending too fast, disconnecting.");
+            send(ChatMessage.notice("You were disconnected for sending messages too fast."));
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            closeAfterFlush = true;
+        } else if (result > 0) {
+            throttled = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            loop.schedule(() -> {
+                if (closed) return;
+                throttled = false;
+                resumeReading();
+            }, result);
+        }
+        return false;
+    }
+
+    private void lineTooLong() {
+        System.out.println("[SERVER] " + describe() + " sent a line longer than "
+                + maxMessageBytes + " bytes, disconnecting.");
+        close();
+    }
+
+    /**
+     * Names the client in log lines: by its username, or by its address before it has one.
+     */
+    private String describe() {
+        if (clientUserName != null) return "Client '" + clientUserName + "'";
+        return "Client at " + channel.socket().getRemoteSocketAddress();
+    }
+
+    /**
+     * Hands a login, registration or plain name to the server and stops reading
+     * until the result is back on this loop.
+     */
+    private void onAuthRequest(AuthRequest request) {
+        authenticating = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        server.authenticate(request).whenComplete((result, error) -> loop.execute(() -> {
+            if (error != null) error.printStackTrace();
+            onAuthResult(request, error == null ? result : null);
+        }));
+    }
+
+    /**
+     * Registers an authenticated client, or answers a failed attempt and reads the next one.
+     *
+     * @param result The outcome, or null if checking the credentials failed
+     */
+    private void onAuthResult(AuthRequest request, CredentialStore.AuthResult result) {
+        if (closed) return;
+        authenticating = false;
+        if (result == null) {
+            close();
+            return;
+        }
+
+        if (result != CredentialStore.AuthResult.OK) {
+            authAttempts++;
+            if (!request.expectsReply() || authAttempts >= MAX_AUTH_ATTEMPTS) {
+                refuse(request, result.description);
+            } else {
+                send(ChatMessage.authFailed(result.description));
+                resumeReading();
+            }
+            return;
+        }
+
+        clientUserName = request.username;
+        if (!FrameCodec.isValidName(clientUserName)) {
+            refuse(request, "Usernames can be at most " + FrameCodec.MAX_NAME_LENGTH + " bytes long.");
+            return;
+        }
+        if (!server.register(this)) {
+            // Usernames identify clients, so a second session with the same name is refused
+            refuse(request, "The username '" + clientUserName + "' is already in use.");
+            return;
+        }
+        registered = true;
+
+        // Other clients may queue messages for us as soon as we are in the default room;
+        // the answer and the history go ahead of them
+        if (request.expectsReply()) batch.add(ChatMessage.authOk().encodedFor(protocol));
+        replaying = true;
+        session = new RoomSession(server.getRooms(), this, server.getConfig());
+        session.joinDefault().whenComplete((replayUpTo, error) -> loop.execute(() -> {
+            if (error != null) error.printStackTrace();
+            if (closed) return;
+            if (replayUpTo != null && replayUpTo > 0) {
+                startReplay(replayUpTo);
+            } else {
+                replaying = false;
+                flush();
+            }
+        }));
+        resumeReading();
+    }
+
+    /**
+     * Holds back writing until the history up to upTo is ready on this loop.
+     */
+    private void startReplay(long upTo) {
+        replaying = true;
+        server.getRooms().getHistory().replay(upTo).whenComplete((replay, error) -> loop.execute(() -> {
+            if (error != null) error.printStackTrace();
+            if (closed) return;
+            replaying = false;
+            if (replay != null) replayBuffers = new ArrayDeque<>(replay.buffers(protocol));
+            flush();
+        }));
+    }
+
+    /**
+     * Writes the answer, then re-enables reading and handles whatever arrived while
+     * the login was checked.
+     */
+    private void resumeReading() {
+        flush();
+        if (closed) return;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        try {
+            decodePending();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Tells a client that has not joined yet why it is refused, stops reading and closes
+     * once the answer has been written. Old clients get a SERVER notice.
+     */
+    private void refuse(AuthRequest request, String reason) {
+        send(request.expectsReply() ? ChatMessage.authFailed(reason) : ChatMessage.notice(reason));
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        closeAfterFlush = true;
+    }
+
+    private void appendPending(ByteBuffer buffer) {
+        int length = buffer.remaining();
+        if (pending == null) {
+            pending = new byte[Math.max(128, length)];
+        } else if (pendingEnd + length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingEnd + length));
+        }
+        buffer.get(pending, pendingEnd, length);
+        pendingEnd += length;
+    }
+
+    /**
+     * Drops consumed bytes; an idle connection keeps no buffer at all.
+     */
+    private void compactPending() {
+        if (pending == null) return;
+        if (pendingStart == pendingEnd) {
+            pending = null;
+            pendingStart = pendingEnd = scanFrom = 0;
+        } else if (pendingStart > 0) {
+            System.arraycopy(pending, pendingStart, pending, 0, pendingEnd - pendingStart);
+            pendingEnd -= pendingStart;
+            scanFrom = Math.max(0, scanFrom - pendingStart);
+            pendingStart = 0;
+        }
+    }
+
+    /**
+     * Queues a message, encoded for this client's protocol. Safe to call from any thread.
+     * If the queue is full and the policy is DISCONNECT, the client is dropped.
+     */
+    @Override
+    public void send(ChatMessage message) {
+        if (message.sequence != 0 && message.sequence <= replayedUpTo) return; // Already replayed
+        if (!outbound.offer(message.encodedFor(protocol))) {
+            loop.execute(() -> {
+                if (closed) return;
+                System.out.println("[SERVER] Client '" + clientUserName + "' is too slow, disconnecting.");
+                close();
+            });
+            return;
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flush);
+        }
+    }
+
+    /**
+     * Queues a last notice, stops reading and closes once it is written. Safe to call from any thread.
+     */
+    @Override
+    public void disconnect(String reason) {
+        loop.execute(() -> {
+            if (closed || closeAfterFlush) return;
+            send(ChatMessage.notice(reason));
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            closeAfterFlush = true;
+        });
+    }
+
+    /**
+     * Returns the queue of messages waiting to be written to this client (for metrics).
+     */
+    @Override
+    public OutboundQueue<ByteBuffer> getOutboundQueue() {
+        return outbound;
+    }
+
+    /**
+     * Writes queued messages, a batch per gathering write, until the queue is empty
+     * or the socket buffer is full. In the latter case we wait for OP_WRITE.
+     */
+    void flush() {
+        if (closed || replaying) return;
+        try {
+            while (true) {
+                fillBatch();
+                while (!batch.isEmpty()) {
+                    server.getMetrics().bytesSent(batch.writeTo(channel));
+                    if (!batch.isEmpty()) {
+                        // Socket buffer is full; continue when the channel is writable again
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    fillBatch();
+                }
+
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (closeAfterFlush) {
+                    close();
+                    return;
+                }
+                flushScheduled.set(false);
+
+                // A sender may have queued a message after our last poll but before the reset
+                if (outbound.size() == 0 || !flushScheduled.compareAndSet(false, true)) return;
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Moves replayed history, then queued messages into the batch.
+     */
+    private void fillBatch() {
+        while (replayBuffers != null && !batch.isFull()) {
+            ByteBuffer next = replayBuffers.poll();
+            if (next == null) {
+                replayBuffers = null;
+            } else {
+                batch.add(next);
+            }
+        }
+        batch.fillFrom(outbound);
+    }
+
+    /**
+     * Closes the channel and tells the server this client has left.
+     */
+    void close() {
+        if (closed) return;
+        closed = true;
+        server.getMetrics().connectionClosed();
+
+        if (key != null) key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        outbound.close();
+        batch.clear();
+        replayBuffers = null;
+
+        if (registered) {
+            server.leave(this);
+            session.leaveAll();
+            String time = LocalTime.now().format(DateTimeFormatter.ofPattern("HH:mm"));
+            System.out.println("[" + time + "] Client '" + clientUserName + "' has disconnected.");
+        }
+    }
+}
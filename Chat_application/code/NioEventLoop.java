@@ -0,0 +1,195 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * NioEventLoop - One selector thread serving many connections.
+ *
+ * All reads and writes of a connection happen on the loop that owns it.
+ * Other threads hand work to the loop with execute(), which wakes up the selector.
+ * The loop's own code can also schedule() work for later (e.g. to resume a rate limited client).
+ */
+public class NioEventLoop implements Runnable {
+
+    // Size of the read buffer shared by every connection of this loop
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final NioChatServer server;
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>(); // Only used on the loop thread
+    private long timerCount; // Keeps timers that are due at the same time in order
+
+    // Idle connections keep no buffers of their own; they all read through this one
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    private volatile boolean running = true;
+
+    /**
+     * Opens the selector and prepares (but does not start) the loop thread.
+     */
+    public NioEventLoop(NioChatServer server, String name) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Runs a task on the loop thread. Safe to call from any thread.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * A task that runs once its time has come.
+     */
+    private static class Timer implements Comparable<Timer> {
+        final long due; // System.nanoTime()
+        final long order;
+        final Runnable task;
+
+        Timer(long due, long order, Runnable task) {
+            this.due = due;
+            this.order = order;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            int byTime = Long.compare(due - other.due, 0);
+            return byTime != 0 ? byTime : Long.compare(order, other.order);
+        }
+    }
+
+    /**
+     * Runs a task on the loop thread after a delay. Only call this on the loop thread.
+     */
+    public void schedule(Runnable task, long delayNanos) {
+        timers.add(new Timer(System.nanoTime() + delayNanos, timerCount++, task));
+    }
+
+    /**
+     * Hands a freshly accepted channel over to this loop.
+     */
+    public void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                NioConnection connection = new NioConnection(server, this, channel);
+                connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+            } catch (IOException e) {
+                closeQuietly(channel);
+            }
+        });
+    }
+
+    /**
+     * Selects ready keys and dispatches them until the loop is shut down.
+     */
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                // Tasks queued by the loop itself did not wake the selector, so don't block on them
+                if (!tasks.isEmpty()) {
+                    selector.selectNow();
+                } else if (timers.isEmpty()) {
+                    selector.select();
+                } else {
+                    // Wait until the next timer is due, rounded up to whole milliseconds
+                    long wait = TimeUnit.NANOSECONDS.toMillis(timers.peek().due - System.nanoTime() + 999_999);
+                    if (wait > 0) {
+                        selector.select(wait);
+                    } else {
+                        selector.selectNow();
+                    }
+                }
+                runTasks();
+                runTimers();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (!key.isValid()) {
+                        connection.close();
+                        continue;
+                    }
+                    if (key.isReadable()) {
+                        connection.onReadable(readBuffer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flush();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                System.out.println("[SERVER] Event loop " + thread.getName() + " failed.");
+                e.printStackTrace();
+            }
+        } finally {
+            closeAllConnections();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void runTimers() {
+        long now = System.nanoTime();
+        while (!timers.isEmpty() && timers.peek().due - now <= 0) {
+            timers.poll().task.run();
+        }
+    }
+
+    /**
+     * Stops the loop; its connections are closed by the loop thread on the way out.
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void closeAllConnections() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                ((NioConnection) key.attachment()).close();
+            }
+            selector.close();
+        } catch (IOException | ClosedSelectorException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Nothing more we can do for this channel
+        }
+    }
+}
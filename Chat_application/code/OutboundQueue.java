@@ -0,0 +1,159 @@
+package chat;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * OutboundQueue - Bounded queue of messages waiting to be written to one client.
+ *
+ * Broadcasting only appends here, so a sender never waits for a slow socket.
+ * The client's writer (a writer task or the NIO event loop) drains the queue.
+ * When the queue is full the configured OverflowPolicy decides what happens.
+ *
+ * @param <T> The message type (String for ClientHandler, ByteBuffer for NIO)
+ */
+public class OutboundQueue<T> {
+
+    /**
+     * What to do when a message arrives and the queue is already full.
+     * DROP_OLDEST - discard the oldest queued message to make room
+     * DISCONNECT  - reject the message; the caller disconnects the slow client
+     */
+    public enum OverflowPolicy { DROP_OLDEST, DISCONNECT }
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ArrayDeque<T> messages = new ArrayDeque<>();
+
+    // A lock instead of synchronized so virtual writer threads never pin their carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private boolean closed;
+    private boolean finished; // No new messages, but the queued ones are still taken
+
+    // Metrics
+    private int highWaterMark;   // Largest depth seen so far
+    private long droppedCount;   // Messages discarded by DROP_OLDEST
+
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Adds a message without ever blocking.
+     *
+     * @return false if the message was rejected (queue closed or finished, or full with DISCONNECT policy)
+     */
+    public boolean offer(T message) {
+        lock.lock();
+        try {
+            if (closed || finished) return false;
+
+            if (messages.size() >= capacity) {
+                if (policy == OverflowPolicy.DISCONNECT) return false;
+                messages.pollFirst();
+                droppedCount++;
+            }
+
+            messages.addLast(message);
+            highWaterMark = Math.max(highWaterMark, messages.size());
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the next message.
+     *
+     * @return The next message, or null once the queue has been closed (or finished and emptied)
+     */
+    public T take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (messages.isEmpty() && !closed && !finished) {
+                notEmpty.await();
+            }
+            return closed ? null : messages.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the next message without waiting, or null if there is none.
+     */
+    public T poll() {
+        lock.lock();
+        try {
+            return closed ? null : messages.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rejects further messages but leaves the queued ones for the writer; take()
+     * returns null once they are gone.
+     */
+    public void finish() {
+        lock.lock();
+        try {
+            finished = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards everything and wakes up a writer waiting in take().
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            messages.clear();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the current number of queued messages.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return messages.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getHighWaterMark() {
+        lock.lock();
+        try {
+            return highWaterMark;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return droppedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+}
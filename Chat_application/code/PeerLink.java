@@ -0,0 +1,242 @@
+package chat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * PeerLink - The persistent connection from this node to one peer of the cluster.
+ *
+ * A thread of its own connects (and reconnects, with growing pauses), then writes our
+ * events in batches: everything queued is written with one flush, so a busy node sends
+ * few large writes instead of one per message. When there is nothing to send it writes
+ * a PING now and then, so the peer can tell a quiet link from a dead one.
+ *
+ * Written events are kept (up to --cluster-buffer events in all) because the peer may
+ * not have received them when the connection breaks. On reconnect the peer tells us
+ * the last event it has and we send everything after it again. A peer that restarted
+ * only gets events from after its start; its clients are new.
+ */
+public class PeerLink {
+
+    // Events written per flush at most
+    private static final int MAX_BATCH = 256;
+
+    private static final long MIN_RETRY_MILLIS = 100;
+    private static final long MAX_RETRY_MILLIS = 5000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private final ClusterNode node;
+    private final String host;
+    private final int port;
+    private final int capacity;
+
+    // Events not yet written, and written ones kept for a resend; both in event order
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<ClusterNode.Event> unsent = new ArrayDeque<>();
+    private final ArrayDeque<ClusterNode.Event> sent = new ArrayDeque<>();
+    private long peerEpoch;     // The peer's start time at the last handshake
+    private boolean overflowed; // Set when unsent events were discarded, cleared on reconnect
+
+    private final Thread thread;
+    private volatile Socket socket;
+    private volatile String peerId; // Node id of the peer, known after the first handshake
+    private volatile boolean closed;
+
+    /**
+     * @param capacity Events kept for this peer at most, written or not
+     */
+    PeerLink(ClusterNode node, String host, int port, int capacity) {
+        this.node = node;
+        this.host = host;
+        this.port = port;
+        this.capacity = capacity;
+        this.thread = new Thread(this::run, "chat-cluster-link-" + host + ":" + port);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Queues an event for the peer. Called under the node's publish lock, in event order.
+     */
+    void enqueue(ClusterNode.Event event) {
+        lock.lock();
+        try {
+            unsent.add(event);
+            // Written events go first; unsent ones are only lost if the peer is away for long
+            while (sent.size() + unsent.size() > capacity) {
+                if (!sent.isEmpty()) {
+                    sent.poll();
+                } else {
+                    unsent.poll();
+                    if (!overflowed) {
+                        overflowed = true;
+                        System.out.println("[SERVER] Peer " + host + ":" + port + " is not keeping up, dropping cluster messages.");
+                    }
+                }
+            }
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void run() {
+        long retryMillis = MIN_RETRY_MILLIS;
+        boolean reported = false; // Only the first failure of a series is printed
+
+        while (!closed) {
+            try (Socket s = new Socket()) {
+                s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+                s.setTcpNoDelay(true); // We flush whole batches ourselves
+                s.setSoTimeout(ClusterNode.LINK_TIMEOUT_MILLIS); // For the handshake; later we only write
+                socket = s;
+                if (closed) return;
+
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 64 * 1024));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+
+                out.writeByte(ClusterNode.HELLO);
+                ClusterNode.writeString(out, node.getNodeId());
+                out.writeLong(node.getEpoch());
+                out.flush();
+
+                if (in.readByte() != ClusterNode.WELCOME) throw new IOException("Expected WELCOME from peer");
+                String peerId = ClusterNode.readString(in);
+                this.peerId = peerId;
+                long epoch = in.readLong();
+                long lastSeen = in.readLong();
+                resume(epoch, lastSeen);
+                node.writePresence(out);
+                out.flush();
+
+                System.out.println("[SERVER] Linked to peer '" + peerId + "' at " + host + ":" + port + ".");
+                retryMillis = MIN_RETRY_MILLIS;
+                reported = false;
+                writeEvents(out);
+            } catch (IOException e) {
+                if (!closed && !reported) {
+                    System.out.println("[SERVER] Link to peer " + host + ":" + port + " failed (" + e.getMessage() + "), retrying.");
+                    reported = true;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                Thread.sleep(retryMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+        }
+    }
+
+    /**
+     * Puts the written events back in front of the queue, without those the peer has.
+     *
+     * @param epoch    The peer's start time
+     * @param lastSeen The last of our events the peer received
+     */
+    private void resume(long epoch, long lastSeen) {
+        lock.lock();
+        try {
+            while (!sent.isEmpty()) {
+                unsent.addFirst(sent.pollLast());
+            }
+
+            boolean restarted = epoch != peerEpoch;
+            peerEpoch = epoch;
+            while (!unsent.isEmpty()) {
+                ClusterNode.Event next = unsent.peek();
+                if (next.sequence > lastSeen && !(restarted && next.message.timestamp < epoch)) break;
+                unsent.poll();
+            }
+
+            if (!restarted && !unsent.isEmpty() && unsent.peek().sequence > lastSeen + 1) {
+                System.out.println("[SERVER] " + (unsent.peek().sequence - lastSeen - 1)
+                        + " cluster messages for " + host + ":" + port + " were no longer buffered.");
+            }
+            overflowed = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes queued events until the connection fails or the link is closed, and a
+     * PING whenever nothing was queued for PING_INTERVAL_MILLIS.
+     */
+    private void writeEvents(DataOutputStream out) throws IOException, InterruptedException {
+        List<ClusterNode.Event> batch = new ArrayList<>(MAX_BATCH);
+        long pingNanos = TimeUnit.MILLISECONDS.toNanos(ClusterNode.PING_INTERVAL_MILLIS);
+        while (!closed) {
+            lock.lock();
+            try {
+                long waitNanos = pingNanos;
+                while (unsent.isEmpty() && waitNanos > 0) {
+                    waitNanos = notEmpty.awaitNanos(waitNanos);
+                }
+                while (batch.size() < MAX_BATCH && !unsent.isEmpty()) {
+                    ClusterNode.Event event = unsent.poll();
+                    sent.add(event);
+                    batch.add(event);
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (batch.isEmpty()) out.writeByte(ClusterNode.PING);
+            for (ClusterNode.Event event : batch) {
+                ClusterNode.writeEvent(out, event);
+            }
+            out.flush();
+            batch.clear();
+        }
+    }
+
+    /**
+     * Drops the current connection if it goes to the given node; the link reconnects
+     * and resends what the peer did not get. Used when the peer stopped answering.
+     */
+    void reset(String nodeId) {
+        Socket s = socket;
+        if (s != null && nodeId.equals(peerId)) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stops the link thread and closes the connection.
+     */
+    void close() {
+        closed = true;
+        thread.interrupt();
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package chat;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RateLimiter - A token bucket that threads can share without locking.
+ *
+ * Instead of a token count that has to be refilled, the bucket keeps the time at which
+ * the next token is due (the generic cell rate algorithm). Every message moves that time
+ * one interval further; a message is allowed as long as the time does not run more than
+ * a burst ahead of the clock. Taking a token is a read and a compareAndSet.
+ */
+public class RateLimiter {
+
+    private final long interval;  // Nanoseconds per token
+    private final long tolerance; // How far ahead of the clock the due time may run
+    private final AtomicLong due;
+
+    /**
+     * @param perSecond Tokens added per second
+     * @param burst     Tokens that may be taken at once after a quiet period
+     */
+    public RateLimiter(int perSecond, int burst) {
+        if (perSecond < 1 || burst < 1) {
+            throw new IllegalArgumentException("Rate and burst must be at least 1");
+        }
+        this.interval = 1_000_000_000L / perSecond;
+        this.tolerance = interval * (burst - 1);
+        this.due = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes a token if one is available.
+     *
+     * @param now The current System.nanoTime()
+     * @return 0 if a token was taken, otherwise the nanoseconds until one is available
+     */
+    public long tryAcquire(long now) {
+        while (true) {
+            long current = due.get();
+            long start = current - now < 0 ? now : current;
+            long ahead = start - now;
+            if (ahead > tolerance) return ahead - tolerance;
+            if (due.compareAndSet(current, start + interval)) return 0;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package chat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * RoomMember - A connected client as seen by the chat rooms.
+ * Implemented by ClientHandler (threads mode) and NioConnection (NIO mode).
+ */
+public interface RoomMember {
+
+    String getClientUserName();
+
+    int getSessionId();
+
+    /**
+     * Queues a message for this client. Called from room shard threads; must not block.
+     */
+    void send(ChatMessage message);
+
+    /**
+     * Called when joining the default room: live messages up to this MessageLog sequence
+     * number are skipped, because the client gets them from the replay.
+     */
+    void setReplayedUpTo(long sequence);
+
+    /**
+     * Sends the client a notice and closes the connection once everything queued is
+     * written. Safe to call from any thread.
+     */
+    void disconnect(String reason);
+
+    /**
+     * Returns the queue of messages waiting to be written to this client (for metrics).
+     */
+    OutboundQueue<ByteBuffer> getOutboundQueue();
+}
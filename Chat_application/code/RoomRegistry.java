@@ -0,0 +1,321 @@
+package chat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RoomRegistry - The chat rooms, spread over a fixed number of shards.
+ *
+ * Every room belongs to one shard (chosen by its name), and each shard is a single
+ * thread that owns its rooms completely: creating and removing rooms, membership and
+ * fan-out all run there, so none of it needs a lock. A busy room only competes with
+ * the rooms on its own shard, and with more rooms the work spreads over more cores.
+ *
+ * Senders never wait for a fan-out: broadcast() only hands the message to the shard.
+ * Rooms are created when the first member joins and removed when the last one leaves.
+ * The default room, which everybody joins first, is the one kept in the MessageLog.
+ *
+ * In a cluster, what happens on this server's clients is also published to the other
+ * nodes (see ClusterNode), and their events come back in through deliver().
+ *
+ * For ServerMetrics the registry counts messages in and out, and each shard records how
+ * long its broadcasts take from broadcast() until every member has the message queued.
+ */
+public class RoomRegistry {
+
+    public static final String DEFAULT_ROOM = "general";
+
+    // Longest room name in characters
+    public static final int MAX_ROOM_NAME_LENGTH = 32;
+
+    /**
+     * A room and its members. Only touched by the room's shard thread.
+     */
+    private static class ChatRoom {
+        final String name;
+        final List<RoomMember> members = new ArrayList<>();
+
+        ChatRoom(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * One shard: a thread and the rooms it owns.
+     */
+    private static class Shard {
+        // A plain ThreadPoolExecutor so that its queue can be watched
+        final ThreadPoolExecutor executor;
+        final HashMap<String, ChatRoom> rooms = new HashMap<>(); // Only used on the executor's thread
+
+        // Broadcast latencies since the last takeFanOutLatency(), in microseconds.
+        // Only used on the executor's thread.
+        LatencyHistogram fanOutLatency = newLatencyHistogram();
+
+        Shard(String threadName) {
+            this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), task -> {
+                Thread thread = new Thread(task, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private final Shard[] shards;
+    private final MessageLog history; // Null if the server keeps no history
+    private volatile ClusterNode cluster; // Null unless the server is part of a cluster
+
+    // Rate limiters of rooms with members, created by the first sender (see RoomSession)
+    private final ConcurrentHashMap<String, RateLimiter> roomLimiters = new ConcurrentHashMap<>();
+
+    // Chat messages broadcast by this server's clients, and messages queued for members
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+
+    /**
+     * @param shardCount Number of shard threads
+     * @param history    The default room's history, or null
+     */
+    public RoomRegistry(int shardCount, MessageLog history) {
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard("chat-room-shard-" + i);
+        }
+        this.history = history;
+    }
+
+    public MessageLog getHistory() {
+        return history;
+    }
+
+    public ClusterNode getCluster() {
+        return cluster;
+    }
+
+    /**
+     * Makes the rooms span a cluster. Called once, before clients are accepted.
+     */
+    public void setCluster(ClusterNode cluster) {
+        this.cluster = cluster;
+    }
+
+    /**
+     * Checks whether a user is online on another node of the cluster.
+     */
+    public boolean isOnlineElsewhere(String userName) {
+        ClusterNode node = cluster;
+        return node != null && node.isOnlineElsewhere(userName);
+    }
+
+    private Shard shardOf(String room) {
+        return shards[Math.floorMod(room.hashCode(), shards.length)];
+    }
+
+    /**
+     * Room names are short words: letters, digits, '-' and '_'.
+     */
+    public static boolean isValidName(String room) {
+        if (room.isEmpty() || room.length() > MAX_ROOM_NAME_LENGTH) return false;
+        for (int i = 0; i < room.length(); i++) {
+            char c = room.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds a member to a room (creating the room if needed) and tells the other members.
+     *
+     * @return Completes on the shard with the last history message to replay to the
+     *         member (see MessageLog.join), or 0 if there is nothing to replay
+     */
+    public CompletableFuture<Long> join(String roomName, RoomMember member) {
+        Shard shard = shardOf(roomName);
+        return CompletableFuture.supplyAsync(() -> {
+            ChatRoom room = shard.rooms.computeIfAbsent(roomName, ChatRoom::new);
+
+            long replayUpTo = 0;
+            if (history != null && roomName.equals(DEFAULT_ROOM)) {
+                // Lined up with the log, so the member gets every message exactly once
+                replayUpTo = history.join(lastSequence -> {
+                    member.setReplayedUpTo(lastSequence);
+                    return room.members.add(member);
+                });
+            } else {
+                room.members.add(member);
+            }
+
+            ChatMessage joined = roomName.equals(DEFAULT_ROOM)
+                    ? ChatMessage.joined(member.getSessionId(), member.getClientUserName())
+                    : ChatMessage.notice(member.getClientUserName() + " has joined #" + roomName + ".");
+            fanOut(room, member, joined);
+            publish(roomName, joined);
+            return replayUpTo;
+        }, shard.executor);
+    }
+
+    /**
+     * Removes a member from a room and tells the remaining members.
+     */
+    public void leave(String roomName, RoomMember member) {
+        Shard shard = shardOf(roomName);
+        shard.executor.execute(() -> {
+            ChatRoom room = shard.rooms.get(roomName);
+            if (room == null || !room.members.remove(member)) return;
+            if (room.members.isEmpty()) {
+                shard.rooms.remove(roomName);
+                roomLimiters.remove(roomName);
+            }
+
+            ChatMessage left = roomName.equals(DEFAULT_ROOM)
+                    ? ChatMessage.left(member.getSessionId(), member.getClientUserName())
+                    : ChatMessage.notice(member.getClientUserName() + " has left #" + roomName + ".");
+            fanOut(room, member, left);
+            publish(roomName, left);
+        });
+    }
+
+    /**
+     * Sends a message to every member of a room except the sender, on the room's shard.
+     * Messages in the default room are appended to the history first.
+     */
+    public void broadcast(String roomName, RoomMember sender, ChatMessage message) {
+        Shard shard = shardOf(roomName);
+        long queuedAt = System.nanoTime();
+        messagesIn.increment();
+        shard.executor.execute(() -> {
+            ChatRoom room = shard.rooms.get(roomName);
+            if (room == null) return;
+            if (history != null && roomName.equals(DEFAULT_ROOM)) history.append(message);
+            fanOut(room, sender, message);
+            shard.fanOutLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - queuedAt));
+            publish(roomName, message);
+        });
+    }
+
+    /**
+     * Sends a message from another node of the cluster to this server's members of the room.
+     */
+    public void deliver(String roomName, ChatMessage message) {
+        Shard shard = shardOf(roomName);
+        shard.executor.execute(() -> {
+            if (history != null && roomName.equals(DEFAULT_ROOM)) history.append(message);
+            ChatRoom room = shard.rooms.get(roomName);
+            if (room != null) fanOut(room, null, message);
+        });
+    }
+
+    private void publish(String roomName, ChatMessage message) {
+        ClusterNode node = cluster;
+        if (node != null) node.publish(roomName, message);
+    }
+
+    private void fanOut(ChatRoom room, RoomMember sender, ChatMessage message) {
+        int sent = 0;
+        for (RoomMember member : room.members) {
+            if (member != sender) {
+                member.send(message);
+                sent++;
+            }
+        }
+        messagesOut.add(sent);
+    }
+
+    /**
+     * Disconnects this server's client with the given username, if it is logged in,
+     * after telling it why.
+     */
+    public void disconnect(String userName, String reason) {
+        Shard shard = shardOf(DEFAULT_ROOM);
+        shard.executor.execute(() -> {
+            ChatRoom room = shard.rooms.get(DEFAULT_ROOM);
+            if (room == null) return;
+            for (RoomMember member : room.members) {
+                if (member.getClientUserName().equals(userName)) member.disconnect(reason);
+            }
+        });
+    }
+
+    /**
+     * Returns the rate limiter shared by everyone sending to a room. Safe to call from any thread.
+     */
+    public RateLimiter roomLimiter(String roomName, int perSecond, int burst) {
+        return roomLimiters.computeIfAbsent(roomName, name -> new RateLimiter(perSecond, burst));
+    }
+
+    // === METRICS ===
+
+    static LatencyHistogram newLatencyHistogram() {
+        return new LatencyHistogram(TimeUnit.MINUTES.toMicros(10), 2);
+    }
+
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Returns the number of tasks (joins, leaves, broadcasts) waiting for a shard thread.
+     */
+    public int getQueuedTasks() {
+        int queued = 0;
+        for (Shard shard : shards) {
+            queued += shard.executor.getQueue().size();
+        }
+        return queued;
+    }
+
+    /**
+     * Returns the largest number of tasks waiting for any one shard.
+     */
+    public int getMaxQueuedTasks() {
+        int max = 0;
+        for (Shard shard : shards) {
+            max = Math.max(max, shard.executor.getQueue().size());
+        }
+        return max;
+    }
+
+    /**
+     * Collects the broadcast latencies every shard recorded since the last call and
+     * starts new histograms. Runs on the shards, so recording needs no synchronization.
+     */
+    public CompletableFuture<LatencyHistogram> takeFanOutLatency() {
+        CompletableFuture<LatencyHistogram> total = CompletableFuture.completedFuture(newLatencyHistogram());
+        for (Shard shard : shards) {
+            CompletableFuture<LatencyHistogram> taken = CompletableFuture.supplyAsync(() -> {
+                LatencyHistogram histogram = shard.fanOutLatency;
+                shard.fanOutLatency = newLatencyHistogram();
+                return histogram;
+            }, shard.executor);
+            total = total.thenCombine(taken, (sum, histogram) -> {
+                sum.add(histogram);
+                return sum;
+            });
+        }
+        return total;
+    }
+
+    /**
+     * Stops the shard threads.
+     */
+    public void shutdown() {
+        for (Shard shard : shards) {
+            shard.executor.shutdown();
+        }
+    }
+}
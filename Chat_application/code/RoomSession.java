@@ -0,0 +1,198 @@
+package chat;
+
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * RoomSession - The rooms one client is in, and the room its messages go to.
+ *
+ * A client starts in the default room and can be in several rooms at once; it receives
+ * the messages of all of them. Commands (sent as ordinary chat messages):
+ *     /join <room>     join a room (created if needed) and talk there
+ *     /switch <room>   talk in another room you are already in
+ *     /leave [room]    leave a room (the current one if none is given)
+ *     /rooms           list your rooms
+ *
+ * Before a message is sent, admit() checks it against the client's rate limit and the
+ * current room's (--rate-limit, --room-rate-limit); the client decides how to wait.
+ *
+ * Only used by the client's own thread (or event loop), so it needs no locking.
+ */
+public class RoomSession {
+
+    // Results of admit() besides a delay in nanoseconds
+    public static final long ADMITTED = 0;
+    public static final long DROPPED = -1;
+    public static final long DISCONNECT = -2;
+
+    private final RoomRegistry rooms;
+    private final RoomMember member;
+
+    private final LinkedHashSet<String> joined = new LinkedHashSet<>();
+    private String current = RoomRegistry.DEFAULT_ROOM;
+
+    // Rate limits; the client's limiter is null if there is no limit
+    private final RateLimiter limiter;
+    private final int roomRateLimit;
+    private final int roomRateBurst;
+    private final ServerConfig.RateAction rateAction;
+    private boolean holdingToken; // The client's token for a message that waits for its room
+    private boolean warned;       // The client was told about dropped messages
+
+    public RoomSession(RoomRegistry rooms, RoomMember member, ServerConfig config) {
+        this.rooms = rooms;
+        this.member = member;
+        this.limiter = config.rateLimit > 0 ? new RateLimiter(config.rateLimit, config.rateBurst) : null;
+        this.roomRateLimit = config.roomRateLimit;
+        this.roomRateBurst = config.roomRateBurst;
+        this.rateAction = config.rateAction;
+    }
+
+    /**
+     * Joins the default room.
+     *
+     * @return Completes with the last history message to replay, see RoomRegistry.join
+     */
+    public CompletableFuture<Long> joinDefault() {
+        joined.add(RoomRegistry.DEFAULT_ROOM);
+        return rooms.join(RoomRegistry.DEFAULT_ROOM, member);
+    }
+
+    /**
+     * Takes a token for the next message from the client's rate limiter, then from the
+     * current room's. With --rate-action=drop the client is told once per flood.
+     *
+     * @param now The current System.nanoTime()
+     * @return ADMITTED, DROPPED, DISCONNECT, or (with --rate-action=delay) the nanoseconds
+     *         to wait before asking again
+     */
+    public long admit(long now) {
+        long wait = limiter == null || holdingToken ? 0 : limiter.tryAcquire(now);
+        boolean roomLimited = false;
+        if (wait == 0 && roomRateLimit > 0) {
+            wait = rooms.roomLimiter(current, roomRateLimit, roomRateBurst).tryAcquire(now);
+            roomLimited = wait > 0;
+        }
+        if (wait == 0) {
+            holdingToken = false;
+            warned = false;
+            return ADMITTED;
+        }
+
+        if (rateAction == ServerConfig.RateAction.DELAY) {
+            holdingToken = roomLimited;
+            return wait;
+        }
+        // A busy room is not this client's fault; there its message is only dropped
+        if (rateAction == ServerConfig.RateAction.DISCONNECT && !roomLimited) return DISCONNECT;
+
+        if (!warned) {
+            reply(roomLimited ? "#" + current + " is too busy, your message was not delivered."
+                    : "You are sending messages too fast, some were not delivered.");
+            warned = true;
+        }
+        return DROPPED;
+    }
+
+    /**
+     * Sends a chat message to the current room, or handles it if it is a room command.
+     */
+    public void send(ChatMessage message) {
+        if (message.kind == ChatMessage.Kind.CHAT && handleCommand(message.text.trim())) return;
+
+        if (!current.equals(RoomRegistry.DEFAULT_ROOM)) {
+            message = message.inRoom(current);
+        }
+        rooms.broadcast(current, member, message);
+    }
+
+    /**
+     * @return false if the text is not a room command (it is then sent as a message)
+     */
+    private boolean handleCommand(String text) {
+        String[] parts = text.split("\\s+");
+        String command = parts[0];
+        if (!command.equals("/join") && !command.equals("/switch")
+                && !command.equals("/leave") && !command.equals("/rooms")) {
+            return false;
+        }
+
+        String room = parts.length > 1 ? normalize(parts[1]) : null;
+        if (room != null && !RoomRegistry.isValidName(room)) {
+            reply("Room names have at most " + RoomRegistry.MAX_ROOM_NAME_LENGTH
+                    + " letters, digits, '-' or '_'.");
+            return true;
+        }
+
+        switch (command) {
+            case "/join":
+                if (room == null) {
+                    reply("Usage: /join <room>");
+                } else if (joined.add(room)) {
+                    rooms.join(room, member);
+                    current = room;
+                    reply("You joined #" + room + ". Your messages now go to #" + room + ".");
+                } else {
+                    current = room;
+                    reply("Your messages now go to #" + room + ".");
+                }
+                break;
+            case "/switch":
+                if (room == null || !joined.contains(room)) {
+                    reply("You are not in that room. Use /join <room> first.");
+                } else {
+                    current = room;
+                    reply("Your messages now go to #" + room + ".");
+                }
+                break;
+            case "/leave":
+                leave(room != null ? room : current);
+                break;
+            default:
+                StringBuilder list = new StringBuilder("Your rooms:");
+                for (String name : joined) {
+                    list.append(" #").append(name).append(name.equals(current) ? " (current)" : "");
+                }
+                reply(list.toString());
+        }
+        return true;
+    }
+
+    private void leave(String room) {
+        if (!joined.contains(room)) {
+            reply("You are not in #" + room + ".");
+            return;
+        }
+        if (joined.size() == 1) {
+            reply("You cannot leave your last room.");
+            return;
+        }
+
+        joined.remove(room);
+        rooms.leave(room, member);
+        if (room.equals(current)) {
+            current = joined.contains(RoomRegistry.DEFAULT_ROOM) ? RoomRegistry.DEFAULT_ROOM : joined.iterator().next();
+        }
+        reply("You left #" + room + ". Your messages now go to #" + current + ".");
+    }
+
+    /**
+     * Leaves every room; called when the client disconnects.
+     */
+    public void leaveAll() {
+        for (String room : joined) {
+            rooms.leave(room, member);
+        }
+        joined.clear();
+    }
+
+    private void reply(String text) {
+        member.send(ChatMessage.notice(text));
+    }
+
+    private static String normalize(String room) {
+        if (room.startsWith("#")) room = room.substring(1);
+        return room.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,212 @@
+package chat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ServerConfig - Settings for the chat server, read from the command line.
+ *
+ * Every option is passed as --name=value, for example:
+ *     java chat.ChatServer --port=5000 --mode=nio --event-loops=4
+ * Options that are not given keep their defaults.
+ */
+public class ServerConfig {
+
+    /**
+     * How the server handles client connections.
+     * THREADS - one blocking ClientHandler per connection (the original server)
+     * NIO     - a few selector-based event loops shared by all connections
+     */
+    public enum Mode { THREADS, NIO }
+
+    /**
+     * Which threads run the ClientHandlers in THREADS mode.
+     * PLATFORM - regular operating system threads
+     * VIRTUAL  - virtual threads (needs Java 21+, falls back to PLATFORM otherwise)
+     */
+    public enum ExecutorMode { PLATFORM, VIRTUAL }
+
+    /**
+     * Whether clients must log in.
+     * OPTIONAL - old clients may still join with just a name (not a registered one)
+     * REQUIRED - every client must /login or /register
+     */
+    public enum AuthMode { OPTIONAL, REQUIRED }
+
+    /**
+     * What happens to a message that is over a rate limit.
+     * DELAY      - stop reading from the client until the message is allowed (TCP slows the sender down)
+     * DROP       - discard the message and tell the sender
+     * DISCONNECT - tell the sender and close the connection (for the room limit, the message is dropped)
+     */
+    public enum RateAction { DELAY, DROP, DISCONNECT }
+
+    // Longest --max-message-bytes; larger messages would not fit into a client's frames
+    public static final int MAX_MESSAGE_BYTES_LIMIT = 32 * 1024;
+
+    public int port = 5000;                 // Port the server listens on
+    public Mode mode = Mode.THREADS;        // Connection handling mode
+    public ExecutorMode executor = ExecutorMode.PLATFORM; // Thread type for ClientHandlers
+    public int eventLoops = Runtime.getRuntime().availableProcessors(); // Selector threads in NIO mode
+    public int acceptBacklog = 1024;        // Pending connections the OS may queue for us
+    public int outboundCapacity = 1024;     // Messages queued per client before the overflow policy applies
+    public OutboundQueue.OverflowPolicy overflow = OutboundQueue.OverflowPolicy.DROP_OLDEST; // Slow client handling
+    public String usersFile = "users.txt";  // Account file of the CredentialStore
+    public AuthMode auth = AuthMode.OPTIONAL;
+    public int authThreads = 2;             // Threads hashing passwords
+    public int authQueue = 256;             // Logins waiting for a hashing thread before BUSY is answered
+    public int hashIterations = 65536;      // PBKDF2 iterations for new passwords
+    public String historyDir = "";          // Directory of the MessageLog, empty for no history
+    public int historySegmentMb = 16;       // Size of one log segment file
+    public int historyRetentionHours = 168; // Segments older than this are deleted
+    public int historyReplay = 20;          // Messages replayed to a joining client, 0 for none
+    public int historyReplayMinutes = 0;    // Only replay messages this recent, 0 for any age
+    public int historyQueue = 65536;        // Messages waiting for the history writer before new ones are not logged
+    public int roomShards = Runtime.getRuntime().availableProcessors(); // Threads owning the chat rooms
+    public int clusterPort = 0;             // Port for links from other nodes, 0 to run alone
+    public List<String> peers = new ArrayList<>(); // Cluster ports of the other nodes, as host:port
+    public String nodeId = "";              // Name of this node in the cluster, "node-<port>" if empty
+    public int clusterBuffer = 65536;       // Events kept per peer for resending after a reconnect
+    public int clusterGraceSeconds = 30;    // Users of a disconnected peer stay online this long
+    public int metricsPort = 0;             // Local HTTP port for ServerMetrics, 0 for JMX only
+    public int metricsInterval = 5;         // Seconds between metric samples (rates, latencies, CPU)
+    public int maxMessageBytes = 8192;      // Longest line or frame payload a client may send
+    public int rateLimit = 20;              // Messages per second per connection, 0 for no limit
+    public int rateBurst = 50;              // Messages a connection may send at once after a pause
+    public int roomRateLimit = 0;           // Messages per second per room, 0 for no limit
+    public int roomRateBurst = 200;         // Messages a room may take at once after a pause
+    public RateAction rateAction = RateAction.DELAY; // What happens to messages over a limit
+
+    /**
+     * Parses the command line arguments into a configuration.
+     *
+     * @param args Arguments in the form --name=value
+     * @return The resulting configuration
+     * @throws IllegalArgumentException if an option is unknown or has an invalid value
+     */
+    public static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got: " + arg);
+            }
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+
+            try {
+                switch (name) {
+                    case "port":           config.port = Integer.parseInt(value); break;
+                    case "mode":           config.mode = parseEnum(Mode.class, name, value); break;
+                    case "executor":       config.executor = parseEnum(ExecutorMode.class, name, value); break;
+                    case "event-loops":    config.eventLoops = Integer.parseInt(value); break;
+                    case "accept-backlog": config.acceptBacklog = Integer.parseInt(value); break;
+                    case "outbound-capacity": config.outboundCapacity = Integer.parseInt(value); break;
+                    case "overflow":       config.overflow = parseEnum(OutboundQueue.OverflowPolicy.class, name, value); break;
+                    case "users-file":     config.usersFile = value; break;
+                    case "auth":           config.auth = parseEnum(AuthMode.class, name, value); break;
+                    case "auth-threads":   config.authThreads = Integer.parseInt(value); break;
+                    case "auth-queue":     config.authQueue = Integer.parseInt(value); break;
+                    case "hash-iterations": config.hashIterations = Integer.parseInt(value); break;
+                    case "history-dir":    config.historyDir = value; break;
+                    case "history-segment-mb": config.historySegmentMb = Integer.parseInt(value); break;
+                    case "history-retention-hours": config.historyRetentionHours = Integer.parseInt(value); break;
+                    case "history-replay": config.historyReplay = Integer.parseInt(value); break;
+                    case "history-replay-minutes": config.historyReplayMinutes = Integer.parseInt(value); break;
+                    case "history-queue":  config.historyQueue = Integer.parseInt(value); break;
+                    case "room-shards":    config.roomShards = Integer.parseInt(value); break;
+                    case "cluster-port":   config.clusterPort = Integer.parseInt(value); break;
+                    case "peers":          config.peers = parsePeers(value); break;
+                    case "node-id":        config.nodeId = value; break;
+                    case "cluster-buffer": config.clusterBuffer = Integer.parseInt(value); break;
+                    case "cluster-grace":  config.clusterGraceSeconds = Integer.parseInt(value); break;
+                    case "metrics-port":   config.metricsPort = Integer.parseInt(value); break;
+                    case "metrics-interval": config.metricsInterval = Integer.parseInt(value); break;
+                    case "max-message-bytes": config.maxMessageBytes = Integer.parseInt(value); break;
+                    case "rate-limit":     config.rateLimit = Integer.parseInt(value); break;
+                    case "rate-burst":     config.rateBurst = Integer.parseInt(value); break;
+                    case "room-rate-limit": config.roomRateLimit = Integer.parseInt(value); break;
+                    case "room-rate-burst": config.roomRateBurst = Integer.parseInt(value); break;
+                    case "rate-action":    config.rateAction = parseEnum(RateAction.class, name, value); break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: --" + name);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value for --" + name + ": " + value);
+            }
+        }
+
+        if (config.eventLoops < 1) {
+            throw new IllegalArgumentException("--event-loops must be at least 1");
+        }
+        if (config.outboundCapacity < 1) {
+            throw new IllegalArgumentException("--outbound-capacity must be at least 1");
+        }
+        if (config.authThreads < 1 || config.authQueue < 1 || config.hashIterations < 1) {
+            throw new IllegalArgumentException("--auth-threads, --auth-queue and --hash-iterations must be at least 1");
+        }
+        if (config.historySegmentMb < 1 || config.historySegmentMb > 1024) {
+            throw new IllegalArgumentException("--history-segment-mb must be between 1 and 1024");
+        }
+        if (config.historyRetentionHours < 1) {
+            throw new IllegalArgumentException("--history-retention-hours must be at least 1");
+        }
+        if (config.historyReplay < 0 || config.historyReplayMinutes < 0) {
+            throw new IllegalArgumentException("--history-replay and --history-replay-minutes must not be negative");
+        }
+        if (config.historyQueue < 1) {
+            throw new IllegalArgumentException("--history-queue must be at least 1");
+        }
+        if (config.roomShards < 1) {
+            throw new IllegalArgumentException("--room-shards must be at least 1");
+        }
+        if (config.clusterPort == 0 && !config.peers.isEmpty()) {
+            throw new IllegalArgumentException("--peers needs a --cluster-port");
+        }
+        if (config.clusterBuffer < 1) {
+            throw new IllegalArgumentException("--cluster-buffer must be at least 1");
+        }
+        if (config.clusterGraceSeconds < 0) {
+            throw new IllegalArgumentException("--cluster-grace must not be negative");
+        }
+        if (config.metricsPort < 0 || config.metricsInterval < 1) {
+            throw new IllegalArgumentException("--metrics-port must not be negative and --metrics-interval must be at least 1");
+        }
+        if (config.maxMessageBytes < 1 || config.maxMessageBytes > MAX_MESSAGE_BYTES_LIMIT) {
+            throw new IllegalArgumentException("--max-message-bytes must be between 1 and " + MAX_MESSAGE_BYTES_LIMIT);
+        }
+        if (config.rateLimit < 0 || config.roomRateLimit < 0 || config.rateBurst < 1 || config.roomRateBurst < 1) {
+            throw new IllegalArgumentException("--rate-limit and --room-rate-limit must not be negative, the bursts at least 1");
+        }
+        if (config.nodeId.isEmpty()) config.nodeId = "node-" + config.port;
+        return config;
+    }
+
+    /**
+     * Parses a comma-separated list of host:port addresses.
+     */
+    private static List<String> parsePeers(String value) {
+        List<String> peers = new ArrayList<>();
+        for (String peer : value.split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) continue;
+            int colon = peer.lastIndexOf(':');
+            if (colon <= 0) throw new IllegalArgumentException("Expected host:port in --peers but got: " + peer);
+            Integer.parseInt(peer.substring(colon + 1)); // NumberFormatException is reported by parse()
+            peers.add(peer);
+        }
+        return peers;
+    }
+
+    /**
+     * Parses an enum option case-insensitively, e.g. --mode=nio or --overflow=drop-oldest.
+     */
+    private static <E extends Enum<E>> E parseEnum(Class<E> type, String name, String value) {
+        try {
+            return Enum.valueOf(type, value.toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid value for --" + name + ": " + value);
+        }
+    }
+}
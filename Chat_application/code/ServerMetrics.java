@@ -0,0 +1,502 @@
+package chat;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * ServerMetrics - Counters and gauges that show when the server is getting saturated:
+ * connections, message and byte rates, the depth of the clients' outbound queues,
+ * fan-out latency, and how busy the server's threads and executors are.
+ *
+ * The hot paths only bump LongAdders (and the room shards record into their own
+ * histograms, see RoomRegistry). Everything else is sampled every --metrics-interval
+ * seconds by one background thread, which also turns the totals into rates.
+ *
+ * The numbers are published through JMX as chat:type=ServerMetrics, and as plain text
+ * on http://127.0.0.1:<--metrics-port>/metrics (per client: /clients?limit=N).
+ * The HTTP endpoint only listens on the loopback interface.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+
+    public static final String OBJECT_NAME = "chat:type=ServerMetrics";
+
+    // Clients listed by /clients unless ?limit= says otherwise
+    private static final int DEFAULT_CLIENT_LIMIT = 100;
+
+    // Thread name prefixes CPU usage is reported for; other threads count as "other"
+    private static final String[] THREAD_GROUPS = {
+        "chat-loop", "chat-room-shard", "chat-client", "chat-auth", "chat-history", "chat-cluster", "chat-metrics"
+    };
+
+    private final ServerConfig config;
+    private final RoomRegistry rooms;
+    private final CredentialStore credentials; // Null if the server has no accounts
+
+    // Counted by the connections themselves
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+
+    // Set by the server once it exists
+    private volatile ClientRegistry<? extends RoomMember> clients = new ClientRegistry<>(1);
+    private volatile ExecutorService clientExecutor;
+
+    // The last sample; replaced as a whole so readers see consistent numbers
+    private volatile Sample sample = new Sample();
+
+    // Only used by the sampling thread
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final HashMap<Long, Long> lastThreadCpu = new HashMap<>();
+    private long lastSampleNanos = System.nanoTime();
+
+    private ScheduledExecutorService sampler;
+    private HttpServer httpServer;
+    private ObjectName objectName;
+
+    /**
+     * Creates the counters. Nothing is sampled or published until start().
+     *
+     * @param credentials The server's accounts, or null if it has none
+     */
+    public ServerMetrics(ServerConfig config, RoomRegistry rooms, CredentialStore credentials) {
+        this.config = config;
+        this.rooms = rooms;
+        this.credentials = credentials;
+    }
+
+    /**
+     * Numbers computed by one run of the sampler.
+     */
+    private static class Sample {
+        double messagesInPerSecond;
+        double messagesOutPerSecond;
+        double bytesSentPerSecond;
+        long queuedMessages;
+        int maxClientQueueDepth;
+        long droppedMessages;
+        long fanOutP50 = -1;  // -1 until known, or when the shards did not answer in time
+        long fanOutP99 = -1;
+        long fanOutP999 = -1;
+        long fanOutMax = -1;
+        Map<String, Double> threadCpu = Map.of();
+
+        // Totals at the time of the sample, for the next rates
+        long messagesIn;
+        long messagesOut;
+        long bytesSent;
+    }
+
+    /**
+     * Tells the metrics which clients are connected.
+     *
+     * @param clients The server's client registry (ClientHandler.clientHandlers or the NIO connections)
+     */
+    public void setClients(ClientRegistry<? extends RoomMember> clients) {
+        this.clients = clients;
+    }
+
+    /**
+     * Tells the metrics which executor runs the ClientHandlers (threads mode only).
+     */
+    public void setClientExecutor(ExecutorService clientExecutor) {
+        this.clientExecutor = clientExecutor;
+    }
+
+    // === COUNTED ON THE HOT PATHS ===
+
+    public void connectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    public void connectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    public void bytesSent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    public void rateLimited() {
+        rateLimited.increment();
+    }
+
+    // === PUBLISHING ===
+
+    /**
+     * Registers the JMX bean, starts sampling and, if --metrics-port is set, the HTTP endpoint.
+     */
+    public void start() throws IOException {
+        try {
+            objectName = new ObjectName(OBJECT_NAME);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            System.out.println("[SERVER] Could not register the metrics with JMX.");
+            e.printStackTrace();
+            objectName = null;
+        }
+
+        sampler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "chat-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Threads that existed before the start have used CPU time already; take it as the baseline
+        sampler.execute(() -> {
+            sampleThreadCpu(1);
+            lastSampleNanos = System.nanoTime();
+        });
+        sampler.scheduleAtFixedRate(this::sample, config.metricsInterval, config.metricsInterval, TimeUnit.SECONDS);
+
+        if (config.metricsPort != 0) {
+            httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), config.metricsPort), 0);
+            httpServer.createContext("/metrics", exchange -> respond(exchange, formatMetrics()));
+            httpServer.createContext("/clients", exchange -> respond(exchange, formatClients(clientLimit(exchange))));
+            httpServer.start();
+            System.out.println("[SERVER] Metrics on http://127.0.0.1:" + config.metricsPort + "/metrics");
+        }
+    }
+
+    /**
+     * Stops sampling and publishing.
+     */
+    public void close() {
+        if (sampler != null) sampler.shutdownNow();
+        if (httpServer != null) httpServer.stop(0);
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Computes rates and gauges for the interval since the last sample.
+     */
+    private void sample() {
+        try {
+            Sample previous = sample;
+            Sample next = new Sample();
+            long now = System.nanoTime();
+            double seconds = Math.max(1e-3, (now - lastSampleNanos) / 1e9);
+            lastSampleNanos = now;
+
+            next.messagesIn = rooms.getMessagesIn();
+            next.messagesOut = rooms.getMessagesOut();
+            next.bytesSent = bytesSent.sum();
+            next.messagesInPerSecond = (next.messagesIn - previous.messagesIn) / seconds;
+            next.messagesOutPerSecond = (next.messagesOut - previous.messagesOut) / seconds;
+            next.bytesSentPerSecond = (next.bytesSent - previous.bytesSent) / seconds;
+
+            for (RoomMember client : clients) {
+                OutboundQueue<ByteBuffer> queue = client.getOutboundQueue();
+                int depth = queue.size();
+                next.queuedMessages += depth;
+                next.maxClientQueueDepth = Math.max(next.maxClientQueueDepth, depth);
+                next.droppedMessages += queue.getDroppedCount();
+            }
+
+            // Shards that cannot answer within the interval are saturated; the latencies stay unknown
+            try {
+                LatencyHistogram fanOut = rooms.takeFanOutLatency().get(config.metricsInterval, TimeUnit.SECONDS);
+                if (fanOut.getTotalCount() > 0) {
+                    next.fanOutP50 = fanOut.getValueAtPercentile(50);
+                    next.fanOutP99 = fanOut.getValueAtPercentile(99);
+                    next.fanOutP999 = fanOut.getValueAtPercentile(99.9);
+                    next.fanOutMax = fanOut.getMaxValue();
+                } else {
+                    next.fanOutP50 = next.fanOutP99 = next.fanOutP999 = next.fanOutMax = 0;
+                }
+            } catch (TimeoutException e) {
+                // Reported as -1
+            }
+
+            next.threadCpu = sampleThreadCpu(seconds);
+            sample = next;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // An exception would cancel the schedule; keep sampling
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the CPU time each thread group used since the last sample, in cores.
+     */
+    private Map<String, Double> sampleThreadCpu(double seconds) {
+        if (!threads.isThreadCpuTimeSupported() || !threads.isThreadCpuTimeEnabled()) return Map.of();
+
+        TreeMap<String, Double> cpu = new TreeMap<>();
+        HashMap<Long, Long> seen = new HashMap<>();
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (info == null) continue; // Ended meanwhile
+            long id = info.getThreadId();
+            long time = threads.getThreadCpuTime(id);
+            if (time < 0) continue;
+            seen.put(id, time);
+
+            long used = time - lastThreadCpu.getOrDefault(id, 0L);
+            cpu.merge(threadGroup(info.getThreadName()), used / 1e9 / seconds, Double::sum);
+        }
+        lastThreadCpu.clear();
+        lastThreadCpu.putAll(seen);
+        return cpu;
+    }
+
+    private static String threadGroup(String threadName) {
+        for (String group : THREAD_GROUPS) {
+            if (threadName.startsWith(group)) return group;
+        }
+        return "other";
+    }
+
+    // === TEXT ENDPOINT ===
+
+    /**
+     * Formats every metric as "name value" lines (the Prometheus text format).
+     */
+    String formatMetrics() {
+        StringBuilder out = new StringBuilder();
+        line(out, "chat_connections_opened_total", getConnectionsOpened());
+        line(out, "chat_connections_active", getActiveConnections());
+        line(out, "chat_clients_logged_in", getLoggedInClients());
+        line(out, "chat_messages_in_total", getMessagesIn());
+        line(out, "chat_messages_out_total", getMessagesOut());
+        line(out, "chat_bytes_sent_total", getBytesSent());
+        line(out, "chat_messages_in_per_second", getMessagesInPerSecond());
+        line(out, "chat_messages_out_per_second", getMessagesOutPerSecond());
+        line(out, "chat_bytes_sent_per_second", getBytesSentPerSecond());
+        line(out, "chat_rate_limited_total", getRateLimited());
+        line(out, "chat_outbound_queued_messages", getQueuedMessages());
+        line(out, "chat_outbound_max_queue_depth", getMaxClientQueueDepth());
+        line(out, "chat_outbound_dropped_messages", getDroppedMessages());
+        line(out, "chat_history_unlogged_messages", getUnloggedMessages());
+        line(out, "chat_fanout_latency_micros{quantile=\"0.5\"}", getFanOutP50Micros());
+        line(out, "chat_fanout_latency_micros{quantile=\"0.99\"}", getFanOutP99Micros());
+        line(out, "chat_fanout_latency_micros{quantile=\"0.999\"}", getFanOutP999Micros());
+        line(out, "chat_fanout_latency_micros{quantile=\"1\"}", getFanOutMaxMicros());
+        line(out, "chat_room_tasks_queued", getRoomTasksQueued());
+        line(out, "chat_room_shard_max_queue", getMaxRoomShardQueue());
+        line(out, "chat_pending_logins", getPendingLogins());
+        line(out, "chat_client_threads", getClientThreads());
+        line(out, "chat_client_threads_busy", getBusyClientThreads());
+        for (Map.Entry<String, Double> entry : getThreadCpu().entrySet()) {
+            line(out, "chat_thread_cpu_cores{group=\"" + entry.getKey() + "\"}", entry.getValue());
+        }
+        return out.toString();
+    }
+
+    private static void line(StringBuilder out, String name, long value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void line(StringBuilder out, String name, double value) {
+        out.append(name).append(' ').append(String.format(Locale.ROOT, "%.3f", value)).append('\n');
+    }
+
+    /**
+     * Lists the clients with the deepest outbound queues first.
+     */
+    String formatClients(int limit) {
+        List<RoomMember> list = new ArrayList<>();
+        for (RoomMember client : clients) {
+            list.add(client);
+        }
+        // Queue sizes change while sorting; sort on a copy of them
+        int[] depths = new int[list.size()];
+        Integer[] order = new Integer[list.size()];
+        for (int i = 0; i < depths.length; i++) {
+            depths[i] = list.get(i).getOutboundQueue().size();
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(depths[b], depths[a]));
+
+        StringBuilder out = new StringBuilder();
+        out.append(String.format(Locale.ROOT, "%-24s %10s %10s %10s%n", "client", "queued", "highwater", "dropped"));
+        for (int i = 0; i < order.length && i < limit; i++) {
+            RoomMember client = list.get(order[i]);
+            OutboundQueue<ByteBuffer> queue = client.getOutboundQueue();
+            out.append(String.format(Locale.ROOT, "%-24s %10d %10d %10d%n", client.getClientUserName(),
+                    depths[order[i]], queue.getHighWaterMark(), queue.getDroppedCount()));
+        }
+        return out.toString();
+    }
+
+    private static int clientLimit(HttpExchange exchange) {
+        String query = exchange.getRequestURI().getQuery();
+        if (query != null && query.startsWith("limit=")) {
+            try {
+                return Math.max(0, Integer.parseInt(query.substring("limit=".length())));
+            } catch (NumberFormatException e) {
+                // Fall back to the default
+            }
+        }
+        return DEFAULT_CLIENT_LIMIT;
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    // === ServerMetricsMXBean ===
+
+    @Override
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        // Read closed first, so a connection closing meanwhile never makes this negative
+        long closed = connectionsClosed.sum();
+        return connectionsOpened.sum() - closed;
+    }
+
+    @Override
+    public int getLoggedInClients() {
+        return clients.size();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return rooms.getMessagesIn();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return rooms.getMessagesOut();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public double getMessagesInPerSecond() {
+        return sample.messagesInPerSecond;
+    }
+
+    @Override
+    public double getMessagesOutPerSecond() {
+        return sample.messagesOutPerSecond;
+    }
+
+    @Override
+    public double getBytesSentPerSecond() {
+        return sample.bytesSentPerSecond;
+    }
+
+    @Override
+    public long getRateLimited() {
+        return rateLimited.sum();
+    }
+
+    @Override
+    public long getUnloggedMessages() {
+        MessageLog history = rooms.getHistory();
+        return history == null ? 0 : history.getDroppedCount();
+    }
+
+    @Override
+    public long getQueuedMessages() {
+        return sample.queuedMessages;
+    }
+
+    @Override
+    public int getMaxClientQueueDepth() {
+        return sample.maxClientQueueDepth;
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return sample.droppedMessages;
+    }
+
+    @Override
+    public long getFanOutP50Micros() {
+        return sample.fanOutP50;
+    }
+
+    @Override
+    public long getFanOutP99Micros() {
+        return sample.fanOutP99;
+    }
+
+    @Override
+    public long getFanOutP999Micros() {
+        return sample.fanOutP999;
+    }
+
+    @Override
+    public long getFanOutMaxMicros() {
+        return sample.fanOutMax;
+    }
+
+    @Override
+    public int getRoomTasksQueued() {
+        return rooms.getQueuedTasks();
+    }
+
+    @Override
+    public int getMaxRoomShardQueue() {
+        return rooms.getMaxQueuedTasks();
+    }
+
+    @Override
+    public int getPendingLogins() {
+        return credentials == null ? 0 : credentials.getPendingLogins();
+    }
+
+    @Override
+    public int getClientThreads() {
+        // Virtual threads are not pooled; their number is the number of connections
+        ExecutorService executor = clientExecutor;
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getPoolSize() : 0;
+    }
+
+    @Override
+    public int getBusyClientThreads() {
+        ExecutorService executor = clientExecutor;
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getActiveCount() : 0;
+    }
+
+    @Override
+    public Map<String, Double> getThreadCpu() {
+        return sample.threadCpu;
+    }
+}
@@ -0,0 +1,80 @@
+package chat;
+
+import java.util.Map;
+
+/**
+ * ServerMetricsMXBean - The server's metrics as seen through JMX (e.g. in JConsole,
+ * under chat:type=ServerMetrics). See ServerMetrics.
+ *
+ * Totals count since the server started; rates, latencies and CPU usage are measured
+ * over the last sampling interval (--metrics-interval).
+ */
+public interface ServerMetricsMXBean {
+
+    // === CONNECTIONS ===
+
+    long getConnectionsOpened();
+
+    long getActiveConnections();
+
+    int getLoggedInClients();
+
+    // === TRAFFIC ===
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getBytesSent();
+
+    double getMessagesInPerSecond();
+
+    double getMessagesOutPerSecond();
+
+    double getBytesSentPerSecond();
+
+    /**
+     * Times a client's message was over its own or its room's rate limit.
+     */
+    long getRateLimited();
+
+    // === OUTBOUND QUEUES OF THE CONNECTED CLIENTS ===
+
+    long getQueuedMessages();
+
+    int getMaxClientQueueDepth();
+
+    long getDroppedMessages();
+
+    /**
+     * Chat messages left out of the history because its writer was too far behind.
+     */
+    long getUnloggedMessages();
+
+    // === FAN-OUT, FROM BROADCAST UNTIL QUEUED FOR EVERY MEMBER ===
+
+    long getFanOutP50Micros();
+
+    long getFanOutP99Micros();
+
+    long getFanOutP999Micros();
+
+    long getFanOutMaxMicros();
+
+    // === THREADS AND EXECUTORS ===
+
+    int getRoomTasksQueued();
+
+    int getMaxRoomShardQueue();
+
+    int getPendingLogins();
+
+    int getClientThreads();
+
+    int getBusyClientThreads();
+
+    /**
+     * CPU time used per thread group in the last interval, in cores (1.0 = one core busy).
+     */
+    Map<String, Double> getThreadCpu();
+}
@@ -0,0 +1,8 @@
+package chat;
+
+/**
+ * WireProtocol - The two formats a client can speak.
+ * TEXT   - newline-delimited lines, the original protocol (used by old clients)
+ * BINARY - length-prefixed frames, see FrameCodec
+ */
+public enum WireProtocol { TEXT, BINARY }
@@ -0,0 +1,95 @@
+package chat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * WriteBatch - A few queued messages written to a socket with one gathering write.
+ *
+ * The buffers in a batch belong to the writer: a message that was only partly
+ * written stays here (and not in the OutboundQueue) until the rest is out.
+ */
+public class WriteBatch {
+
+    // Upper bound on buffers handed to a single write call
+    public static final int MAX_BUFFERS = 64;
+
+    private final ByteBuffer[] buffers = new ByteBuffer[MAX_BUFFERS];
+    private int count;
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public boolean isFull() {
+        return count == MAX_BUFFERS;
+    }
+
+    public void add(ByteBuffer buffer) {
+        buffers[count++] = buffer;
+    }
+
+    /**
+     * Moves messages from the queue into the batch until it is full or the queue is empty.
+     */
+    public void fillFrom(OutboundQueue<ByteBuffer> queue) {
+        ByteBuffer next;
+        while (!isFull() && (next = queue.poll()) != null) {
+            add(next);
+        }
+    }
+
+    /**
+     * Performs one gathering write and drops the buffers that were written completely.
+     * A non-blocking channel may write only part (or nothing) of the batch.
+     *
+     * @return The number of bytes written
+     */
+    public long writeTo(GatheringByteChannel channel) throws IOException {
+        long written = channel.write(buffers, 0, count);
+        removeWritten();
+        return written;
+    }
+
+    /**
+     * Writes the whole batch to a plain stream, for sockets without a channel.
+     *
+     * @param scratch Reusable array used to copy the bytes out of read-only and mapped buffers
+     * @return The number of bytes written
+     */
+    public long writeTo(OutputStream out, byte[] scratch) throws IOException {
+        long written = 0;
+        for (int i = 0; i < count; i++) {
+            ByteBuffer buffer = buffers[i];
+            while (buffer.hasRemaining()) {
+                int length = Math.min(scratch.length, buffer.remaining());
+                buffer.get(scratch, 0, length);
+                out.write(scratch, 0, length);
+                written += length;
+            }
+        }
+        removeWritten();
+        return written;
+    }
+
+    private void removeWritten() {
+        int done = 0;
+        while (done < count && !buffers[done].hasRemaining()) {
+            done++;
+        }
+        System.arraycopy(buffers, done, buffers, 0, count - done);
+        for (int i = count - done; i < count; i++) {
+            buffers[i] = null;
+        }
+        count -= done;
+    }
+
+    public void clear() {
+        for (int i = 0; i < count; i++) {
+            buffers[i] = null;
+        }
+        count = 0;
+    }
+}
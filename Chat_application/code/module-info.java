@@ -6,4 +6,9 @@
  *
  */
 module ChatApp {
-}
\ No newline at end of file
+	requires java.management;
+	requires jdk.httpserver;
+
+	// JMX reads ServerMetricsMXBean reflectively
+	exports chat to java.management;
+}
\ No newline at end of file
@@ -0,0 +1,96 @@
+#!/bin/bash
+# compare_executors.sh - Load test of the threads mode with platform and with virtual threads.
+#
+# For each --executor and each client count, starts a server, runs LoadGenerator against
+# it and measures the server's memory once every client is connected. Results:
+#   executors.csv         one LoadGenerator row per run (throughput, latency percentiles)
+#   executors-memory.csv  connected clients, threads, heap and RSS, and both per connection
+#
+# Usage (from the directory with the compiled classes, or set CP):
+#   ./compare_executors.sh
+#   CLIENTS="1000 5000 10000" RATE=500 DURATION=20 JAVA=/path/to/java21/bin/java ./compare_executors.sh
+#
+# Virtual threads need Java 21+; on older runtimes the server falls back to platform threads
+# and the "virtual" rows are marked as such.
+
+CP=${CP:-.}
+JAVA=${JAVA:-java}
+JCMD=${JCMD:-$(dirname "$(command -v "$JAVA")")/jcmd}
+PORT=${PORT:-5099}
+CLIENTS=${CLIENTS:-"500 1000 2000"}
+SENDERS=${SENDERS:-10}
+RATE=${RATE:-200}
+DURATION=${DURATION:-15}
+WARMUP=${WARMUP:-5}
+REPORT=${REPORT:-executors.csv}
+MEMORY_REPORT=${MEMORY_REPORT:-executors-memory.csv}
+
+if [ ! -f "$MEMORY_REPORT" ]; then
+    echo "label,clients,connected,threads,heap_idle_kb,heap_loaded_kb,rss_idle_kb,rss_loaded_kb,heap_per_client_kb,rss_per_client_kb" > "$MEMORY_REPORT"
+fi
+
+# Heap in use after a full GC, in KB
+heap_kb() {
+    "$JCMD" "$1" GC.run > /dev/null
+    "$JCMD" "$1" GC.heap_info | grep -o 'used [0-9]*K' | head -1 | tr -dc '0-9'
+}
+
+rss_kb() {
+    grep VmRSS "/proc/$1/status" | tr -dc '0-9'
+}
+
+threads_of() {
+    grep Threads "/proc/$1/status" | tr -dc '0-9'
+}
+
+for executor in platform virtual; do
+    for clients in $CLIENTS; do
+        server_log=$(mktemp)
+        load_log=$(mktemp)
+
+        # No history, no rate limit: only the executor differs between the runs
+        "$JAVA" -cp "$CP" chat.ChatServer --port="$PORT" --executor="$executor" \
+            --history-dir= --users-file="$(mktemp -u)" --rate-limit=0 > "$server_log" 2>&1 &
+        server=$!
+        sleep 2
+        if ! kill -0 $server 2> /dev/null; then
+            echo "Server did not start:"; cat "$server_log"
+            exit 1
+        fi
+
+        label=$executor
+        if grep -q "Virtual threads need Java 21" "$server_log"; then
+            label="$executor(fell-back-to-platform)"
+        fi
+
+        heap_idle=$(heap_kb $server)
+        rss_idle=$(rss_kb $server)
+
+        "$JAVA" -cp "$CP" chat.LoadGenerator --servers=127.0.0.1:"$PORT" --clients="$clients" \
+            --senders="$SENDERS" --rate="$RATE" --duration="$DURATION" --warmup="$WARMUP" \
+            --label="$label" --report="$REPORT" > "$load_log" 2>&1 &
+        load=$!
+
+        # Every client is connected (or failed) once sending starts
+        while ! grep -q "^\[LOAD\] Sending" "$load_log" && kill -0 $load 2> /dev/null; do
+            sleep 0.5
+        done
+        connected=$(grep -o '^\[LOAD\] [0-9]* connected, [0-9]* failed' "$load_log" | head -1 | awk '{print $2}')
+        threads=$(threads_of $server)
+        heap_loaded=$(heap_kb $server)
+        rss_loaded=$(rss_kb $server)
+
+        wait $load
+        kill $server
+        wait $server 2> /dev/null
+
+        per_client() {
+            awk -v a="$1" -v b="$2" -v n="$connected" 'BEGIN { if (n > 0) printf "%.1f", (b - a) / n; else print "" }'
+        }
+        echo "$label,$clients,$connected,$threads,$heap_idle,$heap_loaded,$rss_idle,$rss_loaded,$(per_client "$heap_idle" "$heap_loaded"),$(per_client "$rss_idle" "$rss_loaded")" >> "$MEMORY_REPORT"
+        grep -A 6 "^=== Load test" "$load_log"
+        rm -f "$server_log" "$load_log"
+    done
+done
+
+echo "Results appended to $REPORT and $MEMORY_REPORT"
@@ -65,6 +65,152 @@ public class Dijkstra {
         return new DijkstraResult(distances, previous);
     }
 
+    /**
+     * Computes shortest paths from a starting node, but only for nodes within the given radius.
+     * The search stops as soon as the closest unsettled node is farther than the radius, so only
+     * the explored region of the graph is touched.
+     *
+     * @param graph     The input graph
+     * @param start     The starting node
+     * @param radius    The maximum distance (inclusive) of reported nodes
+     * @param workspace A reusable workspace (see {@link Workspace})
+     * @return A DijkstraResult containing only the nodes within the radius, closest first
+     */
+    public static DijkstraResult computeWithinRadius(create_the_graph graph, String start, int radius, Workspace workspace) {
+        return computeBounded(graph, start, radius, Integer.MAX_VALUE, workspace);
+    }
+
+    /**
+     * Same as {@link #computeWithinRadius(create_the_graph, String, int, Workspace)} with a fresh workspace.
+     */
+    public static DijkstraResult computeWithinRadius(create_the_graph graph, String start, int radius) {
+        return computeWithinRadius(graph, start, radius, new Workspace());
+    }
+
+    /**
+     * Computes the k nodes closest to the starting node (the start node itself included).
+     * The search stops as soon as k nodes have been settled.
+     *
+     * @param graph     The input graph
+     * @param start     The starting node
+     * @param k         The number of nodes to report
+     * @param workspace A reusable workspace (see {@link Workspace})
+     * @return A DijkstraResult containing at most k nodes, closest first
+     */
+    public static DijkstraResult computeKNearest(create_the_graph graph, String start, int k, Workspace workspace) {
+        return computeBounded(graph, start, Integer.MAX_VALUE, k, workspace);
+    }
+
+    /**
+     * Same as {@link #computeKNearest(create_the_graph, String, int, Workspace)} with a fresh workspace.
+     */
+    public static DijkstraResult computeKNearest(create_the_graph graph, String start, int k) {
+        return computeKNearest(graph, start, k, new Workspace());
+    }
+
+    /**
+     * Shared early-exit search used by the radius and k-nearest queries.
+     * Distances and predecessors live in the workspace arrays and are only valid for
+     * indices stamped with the current generation, so nothing is reset between queries.
+     */
+    private static DijkstraResult computeBounded(create_the_graph graph, String start, int radius, int maxSettled, Workspace ws) {
+        Map<String, Integer> distances = new LinkedHashMap<>(); // Settled nodes in order of distance
+        Map<String, String> previous = new HashMap<>();         // Previous node for path reconstruction
+
+        int startId = graph.getNodeId(start);
+        if (startId < 0 || radius < 0 || maxSettled <= 0) {
+            return new DijkstraResult(distances, previous);
+        }
+
+        ws.begin(graph.getNodeCount());
+        ws.reach(startId, 0, -1);
+
+        PriorityQueue<NodeDist> queue = ws.queue;
+        queue.clear();
+        queue.add(new NodeDist(start, 0));
+
+        while (!queue.isEmpty()) {
+            NodeDist current = queue.poll();
+            int id = graph.getNodeId(current.node);
+
+            // Skip stale queue entries and nodes that were already settled
+            if (ws.settled[id] == ws.generation || current.distance != ws.dist[id]) continue;
+
+            // Everything left in the queue is at least this far away
+            if (current.distance > radius) break;
+
+            ws.settled[id] = ws.generation;
+            distances.put(current.node, current.distance);
+            if (ws.prev[id] >= 0) {
+                previous.put(current.node, graph.getNodeName(ws.prev[id]));
+            }
+            if (distances.size() >= maxSettled) break;
+
+            // Explore neighbors, ignoring anything that would land outside the radius
+            for (Edge edge : graph.getNeighbors(current.node)) {
+                long newDist = (long) current.distance + edge.weight;
+                if (newDist > radius) continue;
+
+                int targetId = graph.getNodeId(edge.target);
+                if (ws.settled[targetId] == ws.generation) continue;
+                if (ws.stamp[targetId] != ws.generation || newDist < ws.dist[targetId]) {
+                    ws.reach(targetId, (int) newDist, id);
+                    queue.add(new NodeDist(edge.target, (int) newDist));
+                }
+            }
+        }
+
+        queue.clear();
+        return new DijkstraResult(distances, previous);
+    }
+
+    /**
+     * Reusable scratch space for the bounded queries.
+     *
+     * Instead of filling a distance map for every node in the graph, each slot carries the
+     * generation (query number) in which it was last written. Starting a new query only bumps
+     * the generation, so the cost of a query is proportional to the region it explores.
+     * A workspace is not thread-safe; use one per thread.
+     */
+    public static class Workspace {
+        private int generation;
+        private int[] stamp = new int[0];   // Generation in which dist/prev were last written
+        private int[] settled = new int[0]; // Generation in which the node was settled
+        private int[] dist = new int[0];
+        private int[] prev = new int[0];
+        private final PriorityQueue<NodeDist> queue = new PriorityQueue<>(Comparator.comparingInt(n -> n.distance));
+
+        /**
+         * Starts a new query over a graph with the given number of nodes.
+         */
+        private void begin(int nodeCount) {
+            if (stamp.length < nodeCount) {
+                int size = Math.max(nodeCount, stamp.length * 2);
+                stamp = Arrays.copyOf(stamp, size);
+                settled = Arrays.copyOf(settled, size);
+                dist = Arrays.copyOf(dist, size);
+                prev = Arrays.copyOf(prev, size);
+            }
+
+            generation++;
+            if (generation == 0) {
+                // The counter wrapped around: old stamps could collide, so clear them once
+                Arrays.fill(stamp, 0);
+                Arrays.fill(settled, 0);
+                generation = 1;
+            }
+        }
+
+        /**
+         * Records a tentative distance and predecessor for a node.
+         */
+        private void reach(int id, int distance, int from) {
+            stamp[id] = generation;
+            dist[id] = distance;
+            prev[id] = from;
+        }
+    }
+
     /**
      * Helper class used in the priority queue to store nodes and their tentative distances.
      */
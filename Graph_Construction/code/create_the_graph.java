@@ -11,6 +11,8 @@ import java.nio.file.*;
 public class create_the_graph {
     private Map<String, List<Edge>> adjList; // adjacency list
     private boolean isDirected;              // flag for directed or undirected graph
+    private Map<String, Integer> nodeIds;    // dense index for each node (in insertion order)
+    private List<String> nodeNames;          // node name for each dense index
 
     /**
      * Constructor to initialize the graph type.
@@ -19,13 +21,18 @@ public class create_the_graph {
     public create_the_graph(boolean isDirected) {
         this.adjList = new HashMap<>();
         this.isDirected = isDirected;
+        this.nodeIds = new HashMap<>();
+        this.nodeNames = new ArrayList<>();
     }
 
     /**
      * Adds a node to the graph if it doesn't exist.
      */
     public void addNode(String node) {
-        adjList.putIfAbsent(node, new ArrayList<>());
+        if (adjList.putIfAbsent(node, new ArrayList<>()) == null) {
+            nodeIds.put(node, nodeNames.size());
+            nodeNames.add(node);
+        }
     }
 
     /**
@@ -123,6 +130,29 @@ public class create_the_graph {
         return adjList.keySet();
     }
 
+    /**
+     * Returns the number of nodes in the graph.
+     */
+    public int getNodeCount() {
+        return nodeNames.size();
+    }
+
+    /**
+     * Returns the dense index (0 .. getNodeCount() - 1) of a node, or -1 if it does not exist.
+     * Indices never change once assigned, so they can be used to address array-based workspaces.
+     */
+    public int getNodeId(String node) {
+        Integer id = nodeIds.get(node);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Returns the node name for a dense index.
+     */
+    public String getNodeName(int id) {
+        return nodeNames.get(id);
+    }
+
     /**
      * Returns a list of neighbors (edges) of a given node.
      */